@@ -0,0 +1,203 @@
+package bruno.nn;
+
+/**
+ * Activation function of a layer @see NeuralNet.Config#activations
+ *
+ * The loops read the activation of their layer once: apply() and derivative() are then a switch on a loop invariant
+ * (there is no virtual call to inline), and the array versions have the switch outside of the loop, so each case is a plain loop.
+ */
+public enum Activation {
+    /**
+     * z for z >= 0, z * RELU_NEG_F for z < 0
+     */
+    LEAKY_RELU,
+    RELU,
+    SIGMOID,
+    TANH,
+    IDENTITY,
+    /**
+     * only for the output layer: exp(z) / sum of exp(z) of the layer, trained with the cross entropy error.
+     * apply() is the identity, softmax() normalizes the whole layer once it is computed.
+     * The derivative of the cross entropy error vs z is then output - expected, computed in one pass by the backward pass,
+     * so derivative() is 1
+     */
+    SOFTMAX;
+
+    /**
+     * factor of LEAKY_RELU for z<0 (for z>0 this factor is always 1.0)
+     */
+    static final double RELU_NEG_F = 0.1;
+
+    /**
+     * @param z sum of weighted values of neurons from previous layer + bias
+     */
+    public double apply(double z) {
+        switch (this) {
+        case LEAKY_RELU:
+            return z < 0 ? z * RELU_NEG_F : z;
+        case RELU:
+            return z < 0 ? 0 : z;
+        case SIGMOID:
+            return 1 / (1 + Math.exp(-z));
+        case TANH:
+            return Math.tanh(z);
+        default:
+            return z;
+        }
+    }
+
+    /**
+     * derivative vs z
+     */
+    public double derivative(double z) {
+        switch (this) {
+        case SIGMOID:
+            double s = 1 / (1 + Math.exp(-z));
+            return s * (1 - s);
+        case TANH:
+            double t = Math.tanh(z);
+            return 1 - t * t;
+        default:
+            return derivative(z < 0);
+        }
+    }
+
+    /**
+     * derivative vs z, knowing only the activation a = apply(z), for the models which do not keep z
+     */
+    public double derivativeOfOutput(double a) {
+        switch (this) {
+        case LEAKY_RELU:
+            return a < 0 ? RELU_NEG_F : 1;
+        case RELU:
+            return a > 0 ? 1 : 0;
+        case SIGMOID:
+            return a * (1 - a);
+        case TANH:
+            return 1 - a * a;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * @return true when the derivative only depends on the sign of z @see NeuralNet.Config#signMasks
+     */
+    public boolean signOnly() {
+        return this != SIGMOID && this != TANH;
+    }
+
+    /**
+     * derivative vs z, knowing only if z < 0 @see #signOnly()
+     */
+    public double derivative(boolean negative) {
+        switch (this) {
+        case LEAKY_RELU:
+            return negative ? RELU_NEG_F : 1;
+        case RELU:
+            return negative ? 0 : 1;
+        case IDENTITY:
+        case SOFTMAX:
+            return 1;
+        default:
+            throw new IllegalStateException(this + " needs z for its derivative");
+        }
+    }
+
+    /**
+     * a[aOff + i] = apply(z[zOff + i]) for i in [0;n[, a and z may be the same
+     */
+    public void apply(double[] z, int zOff, double[] a, int aOff, int n) {
+        switch (this) {
+        case LEAKY_RELU:
+            for (int i = 0; i < n; i++) {
+                double v = z[zOff + i];
+                a[aOff + i] = v < 0 ? v * RELU_NEG_F : v;
+            }
+            break;
+        case RELU:
+            for (int i = 0; i < n; i++)
+                a[aOff + i] = Math.max(0, z[zOff + i]);
+            break;
+        case SIGMOID:
+            for (int i = 0; i < n; i++)
+                a[aOff + i] = 1 / (1 + Math.exp(-z[zOff + i]));
+            break;
+        case TANH:
+            for (int i = 0; i < n; i++)
+                a[aOff + i] = Math.tanh(z[zOff + i]);
+            break;
+        default:
+            if (a != z || aOff != zOff)
+                System.arraycopy(z, zOff, a, aOff, n);
+        }
+    }
+
+    /**
+     * d[dOff + i] *= derivative(z[zOff + i]) for i in [0;n[
+     */
+    public void multiplyDerivative(double[] d, int dOff, double[] z, int zOff, int n) {
+        switch (this) {
+        case LEAKY_RELU:
+            for (int i = 0; i < n; i++)
+                if (z[zOff + i] < 0)
+                    d[dOff + i] *= RELU_NEG_F;
+            break;
+        case RELU:
+            for (int i = 0; i < n; i++)
+                if (z[zOff + i] < 0)
+                    d[dOff + i] = 0;
+            break;
+        case SIGMOID:
+        case TANH:
+            for (int i = 0; i < n; i++)
+                d[dOff + i] *= derivative(z[zOff + i]);
+            break;
+        default:
+        }
+    }
+
+    /**
+     * d[dOff + i] *= derivative(bit i of mask) for i in [0;n[ @see NeuralNet#isNegative(long[], int)
+     */
+    public void multiplyDerivative(double[] d, int dOff, long[] mask, int n) {
+        if (this == IDENTITY || this == SOFTMAX)
+            return;
+        double negative = derivative(true);
+        for (int i = 0; i < n; i++)
+            if (NeuralNet.isNegative(mask, i))
+                d[dOff + i] *= negative;
+    }
+
+    /**
+     * a[off..off+n[ = exp(a) / sum of exp(a), the maximum is subtracted first so that exp() does not overflow
+     */
+    public static void softmax(double[] a, int off, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = off; i < off + n; i++)
+            max = Math.max(max, a[i]);
+        double sum = 0;
+        for (int i = off; i < off + n; i++) {
+            a[i] = Math.exp(a[i] - max);
+            sum += a[i];
+        }
+        for (int i = off; i < off + n; i++)
+            a[i] /= sum;
+    }
+
+    /**
+     * float version of softmax(double[], int, int)
+     */
+    public static void softmax(float[] a, int off, int n) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = off; i < off + n; i++)
+            max = Math.max(max, a[i]);
+        float sum = 0;
+        for (int i = off; i < off + n; i++) {
+            a[i] = (float) Math.exp(a[i] - max);
+            sum += a[i];
+        }
+        for (int i = off; i < off + n; i++)
+            a[i] /= sum;
+    }
+}
@@ -0,0 +1,78 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Compares synchronous data parallel training with asynchronous (Hogwild) training on MNIST:
+ * throughput in samples/s and time until the test accuracy reaches a target.
+ *
+ * args: directory of the MNIST files, threads, target accuracy, max epochs
+ */
+public class AsyncTrainingBenchmark {
+
+    /**
+     * @return samples/s, seconds to reach the target accuracy (NaN if not reached) and final accuracy
+     */
+    static double[] run(List<InAndOut> train, List<InAndOut> test, TrainConfig trainConfig, double target, int maxEpochs) {
+        Config config = new Config();
+        config.layer_sizes = new int[] { 28 * 28, 128, 10 };
+        config.rate = 0.01;
+        config.float32 = true;
+        config.vectorKernels = true;
+        Network nn = NeuralNet.create(config);
+
+        long nanos = 0;
+        long samples = 0;
+        double timeToTarget = Double.NaN;
+        double accuracy = 0;
+        for (int epoch = 0; epoch < maxEpochs && Double.isNaN(timeToTarget); epoch++) {
+            long start = System.nanoTime();
+            TrainingHelper.train(train, List.of(), nn, trainConfig);
+            nanos += System.nanoTime() - start;
+            samples += (long) train.size() * trainConfig.batches;
+            // evaluation is not part of the training time
+            accuracy = TrainingHelper.computeErrorAcc(test, nn)[1];
+            if (accuracy >= target)
+                timeToTarget = nanos / 1e9;
+        }
+        return new double[] { samples * 1e9 / nanos, timeToTarget, accuracy };
+    }
+
+    public static void main(String... args) {
+        String dir = args.length > 0 ? args[0] : Mnist.DEFAULT_DIR;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        double target = args.length > 2 ? Double.parseDouble(args[2]) : 0.9;
+        int maxEpochs = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        Mnist.Samples samples = Mnist.samples(dir, Integer.MAX_VALUE, 1000);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        TrainConfig sync = new TrainConfig();
+        sync.epochs = 1;
+        sync.batches = 1;
+        sync.rateDecay = 1;
+        sync.threads = threads;
+        sync.computeBatch = 32;
+
+        TrainConfig async = new TrainConfig();
+        async.epochs = 1;
+        async.batches = 1;
+        async.rateDecay = 1;
+        async.threads = threads;
+        async.async = true;
+        async.asyncBatch = 32;
+        async.computeBatch = 32;
+        async.maxStaleness = 10 * async.asyncBatch;
+
+        double[] s = run(train, test, sync, target, maxEpochs);
+        double[] a = run(train, test, async, target, maxEpochs);
+        NeuralNet.log(String.format("threads:%d target accuracy:%.2f", threads, target));
+        NeuralNet.log(String.format("sync:  %.0f samples/s, time to target:%.1fs, accuracy:%.3f", s[0], s[1], s[2]));
+        NeuralNet.log(String.format("async: %.0f samples/s, time to target:%.1fs, accuracy:%.3f", a[0], a[1], a[2]));
+    }
+}
@@ -0,0 +1,242 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Convolution of an image by filters of kernel x kernel x channels weights, computed as im2col + GEMM @see ConvNet
+ *
+ * Images are stored channel last (HWC): channel c of pixel (y, x) is at (y * width + x) * channels + c, so that a single channel
+ * image is the same array as the input of a dense layer (e.g. the 784 pixels of MNIST).
+ * Stride is 1 and there is no padding, the output is an image of (height - kernel + 1) x (width - kernel + 1) x filters.
+ *
+ * im2col copies the patch under each output pixel into a row of cols [positions x patch], the whole layer is then a single
+ * blocked matrix product z = cols * ws^T, and the backward pass two more: dws += dz^T * cols and dcols = dz * ws.
+ * A layer computes one sample at a time, its buffers are reused from one sample to the next.
+ */
+public class ConvLayer {
+
+    final int height;
+    final int width;
+    final int channels;
+    final int kernel;
+    final int filters;
+    final int outHeight;
+    final int outWidth;
+    /**
+     * number of output pixels, i.e. rows of cols
+     */
+    final int positions;
+    /**
+     * kernel * kernel * channels, i.e. columns of cols and weights of a filter
+     */
+    final int patch;
+    final Activation activation;
+
+    /**
+     * weights [filters x patch] row-major, the weights of a filter are in the order of a row of cols: (ky * kernel + kx) * channels + c
+     */
+    final double[] ws;
+    final double[] bs;
+    /**
+     * state of Config.optimizer, shared with the workers like ws and bs
+     */
+    double[] mws, mbs, vws, vbs;
+
+    // accumulated derivatives
+    final double[] dws;
+    final double[] dbs;
+
+    // buffers of the last sample
+    final double[] cols;
+    final double[] zs;
+    final double[] out;
+    /**
+     * derivative of the cost vs out, then vs z once backward() is done
+     */
+    final double[] dls;
+    final double[] dcols;
+
+    public ConvLayer(int height, int width, int channels, int filters, int kernel, Activation activation, Config config, Random random) {
+        if (kernel > height || kernel > width)
+            throw new IllegalArgumentException("kernel " + kernel + " is larger than the image " + height + "x" + width);
+        if (activation == Activation.SOFTMAX)
+            throw new IllegalArgumentException("SOFTMAX is only for the output layer");
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.kernel = kernel;
+        this.filters = filters;
+        this.activation = activation;
+        this.outHeight = height - kernel + 1;
+        this.outWidth = width - kernel + 1;
+        this.positions = outHeight * outWidth;
+        this.patch = kernel * kernel * channels;
+        this.ws = new double[filters * patch];
+        this.bs = new double[filters];
+        // the weights of a filter are in [-1/sqrt(patch);1/sqrt(patch)[, so that z does not depend on the size of the patch
+        double f = 2 / Math.sqrt(patch);
+        for (int i = 0; i < ws.length; i++)
+            ws[i] = (random.nextDouble() - 0.5) * f;
+        for (int i = 0; i < bs.length; i++)
+            bs[i] = (random.nextDouble() - 0.5) * config.initial_weight_f;
+        if (config.optimizer.hasM()) {
+            mws = new double[ws.length];
+            mbs = new double[bs.length];
+        }
+        if (config.optimizer.hasV()) {
+            vws = new double[ws.length];
+            vbs = new double[bs.length];
+        }
+        this.dws = new double[ws.length];
+        this.dbs = new double[bs.length];
+        this.cols = new double[positions * patch];
+        this.zs = new double[positions * filters];
+        this.out = new double[positions * filters];
+        this.dls = new double[positions * filters];
+        this.dcols = new double[positions * patch];
+    }
+
+    /**
+     * creates a worker sharing weights, biases and optimizer state with master @see NeuralNet#NeuralNet(NeuralNet)
+     */
+    public ConvLayer(ConvLayer master) {
+        this.height = master.height;
+        this.width = master.width;
+        this.channels = master.channels;
+        this.kernel = master.kernel;
+        this.filters = master.filters;
+        this.activation = master.activation;
+        this.outHeight = master.outHeight;
+        this.outWidth = master.outWidth;
+        this.positions = master.positions;
+        this.patch = master.patch;
+        this.ws = master.ws;
+        this.bs = master.bs;
+        this.mws = master.mws;
+        this.mbs = master.mbs;
+        this.vws = master.vws;
+        this.vbs = master.vbs;
+        this.dws = new double[ws.length];
+        this.dbs = new double[bs.length];
+        this.cols = new double[master.cols.length];
+        this.zs = new double[master.zs.length];
+        this.out = new double[master.out.length];
+        this.dls = new double[master.dls.length];
+        this.dcols = new double[master.dcols.length];
+    }
+
+    /**
+     * size of the input image
+     */
+    public int inputs() {
+        return height * width * channels;
+    }
+
+    /**
+     * size of the output image
+     */
+    public int outputs() {
+        return positions * filters;
+    }
+
+    /**
+     * multiply-accumulates of a forward pass
+     */
+    public long macs() {
+        return (long) positions * filters * patch;
+    }
+
+    /**
+     * fwd pass of one image
+     * @return the output image, valid until the next call
+     */
+    public double[] forward(double[] in) {
+        im2col(in, cols);
+        MatrixHelper.broadcastRows(bs, 0, zs, 0, positions, filters);
+        MatrixHelper.multiplyABt(cols, 0, ws, 0, zs, 0, positions, filters, patch);
+        activation.apply(zs, 0, out, 0, zs.length);
+        return out;
+    }
+
+    /**
+     * backward pass of the last forward(), from the derivative of the cost vs the output in dls.
+     * The derivatives of weights and biases are accumulated
+     * @param dIn if not null, set to the derivative of the cost vs the input image
+     */
+    public void backward(double[] dIn) {
+        activation.multiplyDerivative(dls, 0, zs, 0, dls.length);
+        MatrixHelper.multiplyAtB(dls, 0, cols, 0, dws, 0, positions, filters, patch);
+        MatrixHelper.sumRows(dls, 0, dbs, 0, positions, filters);
+        if (dIn == null)
+            return;
+        Arrays.fill(dcols, 0);
+        MatrixHelper.multiplyAB(dls, 0, ws, 0, dcols, 0, positions, filters, patch);
+        col2im(dcols, dIn);
+    }
+
+    /**
+     * copy the patch under each output pixel into a row of cols. With channel last, the kernel * channels values of a row of
+     * the patch are contiguous in the image, so each of them is a single copy
+     */
+    void im2col(double[] in, double[] cols) {
+        int row = kernel * channels;
+        int c = 0;
+        for (int oy = 0; oy < outHeight; oy++)
+            for (int ox = 0; ox < outWidth; ox++)
+                for (int ky = 0; ky < kernel; ky++) {
+                    System.arraycopy(in, ((oy + ky) * width + ox) * channels, cols, c, row);
+                    c += row;
+                }
+    }
+
+    /**
+     * reverse of im2col(): in = the sum of the rows of cols at the position they were copied from
+     */
+    void col2im(double[] cols, double[] in) {
+        Arrays.fill(in, 0);
+        int row = kernel * channels;
+        int c = 0;
+        for (int oy = 0; oy < outHeight; oy++)
+            for (int ox = 0; ox < outWidth; ox++)
+                for (int ky = 0; ky < kernel; ky++) {
+                    int io = ((oy + ky) * width + ox) * channels;
+                    for (int i = 0; i < row; i++)
+                        in[io + i] += cols[c + i];
+                    c += row;
+                }
+    }
+
+    /**
+     * apply the accumulated derivatives of dh samples with the update rule of Config.optimizer, and reset them
+     * @see NeuralNet#applyDws()
+     */
+    void applyDws(double dh, Config config, long steps, Kernels kernels) {
+        Optimizer optimizer = config.optimizer;
+        if (optimizer == Optimizer.SGD)
+            kernels.descend(ws, dws, ws.length, dh, config.rate);
+        else
+            optimizer.update(ws, dws, mws, vws, ws.length, dh, config, steps);
+        optimizer.update(bs, dbs, mbs, vbs, bs.length, dh, config, steps);
+    }
+
+    /**
+     * add part [part/parts] of the derivatives accumulated by worker @see NeuralNet#addDws(Network, int, int)
+     */
+    void addDws(ConvLayer worker, int part, int parts) {
+        DataHelper.addPart(worker.dws, dws, part, parts);
+        DataHelper.addPart(worker.dbs, dbs, part, parts);
+    }
+
+    void resetDws() {
+        DataHelper.zeros(dws);
+        DataHelper.zeros(dbs);
+    }
+
+    @Override
+    public String toString() {
+        return "conv " + kernel + "x" + kernel + "x" + channels + " filters:" + filters + " -> " + outHeight + "x" + outWidth + "x" + filters;
+    }
+}
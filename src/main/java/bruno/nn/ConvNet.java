@@ -0,0 +1,183 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Convolutional blocks (a ConvLayer, optionally followed by a MaxPool) under a dense NeuralNet head, for image inputs.
+ *
+ * The input of the head is the flattened output of the last block (channel last @see ConvLayer), the dense layers are
+ * computed by NeuralNet as usual, which also computes the derivatives of its inputs for the backward pass of the blocks
+ * @see NeuralNet#keepInputDerivatives()
+ * The blocks are trained with the rate and optimizer of the head's Config. Samples are computed one at a time,
+ * so computeBatch does not apply, but threads does.
+ */
+public class ConvNet implements Network {
+
+    final ConvLayer[] convs;
+    /**
+     * pooling after convs[i], null when there is none
+     */
+    final MaxPool[] pools;
+    final NeuralNet head;
+    /**
+     * derivative of the cost vs the input of block i, null for the first block
+     */
+    final double[][] dins;
+    long steps;
+
+    /**
+     * @param blocks filters, kernel size and pool size (1 for none) of each block
+     * @param config of the dense head, except for layer_sizes[0] which is the output size of the last block:
+     *            the head gets a copy of config, use getConfig() to change it afterwards
+     */
+    public ConvNet(int height, int width, int channels, int[][] blocks, Config config) {
+        Random random = new Random(config.seed);
+        convs = new ConvLayer[blocks.length];
+        pools = new MaxPool[blocks.length];
+        dins = new double[blocks.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            int filters = blocks[i][0];
+            int kernel = blocks[i][1];
+            int pool = blocks[i][2];
+            convs[i] = new ConvLayer(height, width, channels, filters, kernel, Activation.LEAKY_RELU, config, random);
+            if (i > 0)
+                dins[i] = new double[convs[i].inputs()];
+            height = convs[i].outHeight;
+            width = convs[i].outWidth;
+            channels = filters;
+            if (pool > 1) {
+                pools[i] = new MaxPool(height, width, channels, pool);
+                height = pools[i].outHeight;
+                width = pools[i].outWidth;
+            }
+        }
+        Config headConfig = config.copy();
+        headConfig.layer_sizes[0] = height * width * channels;
+        head = new NeuralNet(headConfig);
+        head.keepInputDerivatives();
+    }
+
+    /**
+     * creates a worker sharing the weights with master @see Network#newWorker()
+     */
+    ConvNet(ConvNet master) {
+        convs = new ConvLayer[master.convs.length];
+        pools = new MaxPool[master.pools.length];
+        dins = new double[master.dins.length][];
+        for (int i = 0; i < convs.length; i++) {
+            convs[i] = new ConvLayer(master.convs[i]);
+            MaxPool pool = master.pools[i];
+            if (pool != null)
+                pools[i] = new MaxPool(pool.height, pool.width, pool.channels, pool.size);
+            if (master.dins[i] != null)
+                dins[i] = new double[master.dins[i].length];
+        }
+        head = new NeuralNet(master.head);
+        head.keepInputDerivatives();
+    }
+
+    @Override
+    public Config getConfig() {
+        return head.config;
+    }
+
+    /**
+     * multiply-accumulates of a forward pass
+     */
+    public long macs() {
+        long retVal = 0;
+        for (ConvLayer conv : convs)
+            retVal += conv.macs();
+        return retVal + macs(head.config.layer_sizes);
+    }
+
+    /**
+     * multiply-accumulates of a forward pass of dense layers
+     */
+    static long macs(int[] layer_sizes) {
+        long retVal = 0;
+        for (int l = 1; l < layer_sizes.length; l++)
+            retVal += (long) layer_sizes[l - 1] * layer_sizes[l];
+        return retVal;
+    }
+
+    /**
+     * fwd pass of the blocks
+     * @return the input of the head
+     */
+    double[] computeFeatures(double[] inputs) {
+        double[] x = inputs;
+        for (int i = 0; i < convs.length; i++) {
+            x = convs[i].forward(x);
+            if (pools[i] != null)
+                x = pools[i].forward(x);
+        }
+        return x;
+    }
+
+    @Override
+    public double[] computeFwd(double[] inputs) {
+        return head.computeFwd(computeFeatures(inputs));
+    }
+
+    @Override
+    public void computeFwdBwd(double[] inputs, double[] expecteds) {
+        head.computeFwdBwd(computeFeatures(inputs), expecteds);
+        // derivative of the cost vs the output of the current block
+        double[] d = head.dls[0];
+        for (int i = convs.length - 1; i >= 0; i--) {
+            ConvLayer conv = convs[i];
+            if (pools[i] != null)
+                pools[i].backward(d, conv.dls);
+            else
+                System.arraycopy(d, 0, conv.dls, 0, d.length);
+            conv.backward(dins[i]);
+            d = dins[i];
+        }
+    }
+
+    @Override
+    public Network newWorker() {
+        return new ConvNet(this);
+    }
+
+    @Override
+    public void addDws(Network worker, int part, int parts) {
+        ConvNet w = (ConvNet) worker;
+        for (int i = 0; i < convs.length; i++)
+            convs[i].addDws(w.convs[i], part, parts);
+        head.addDws(w.head, part, parts);
+    }
+
+    @Override
+    public void applyDws() {
+        double dh = head.dh;
+        if (dh == 0)
+            return;
+        steps++;
+        for (ConvLayer conv : convs)
+            conv.applyDws(dh, head.config, steps, head.kernels);
+        head.applyDws();
+    }
+
+    @Override
+    public void resetDws() {
+        for (ConvLayer conv : convs)
+            conv.resetDws();
+        head.resetDws();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder();
+        for (int i = 0; i < convs.length; i++) {
+            retVal.append(convs[i]).append(", ");
+            if (pools[i] != null)
+                retVal.append(pools[i]).append(", ");
+        }
+        return retVal.append("dense ").append(Arrays.toString(head.config.layer_sizes)).toString();
+    }
+}
@@ -0,0 +1,56 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Compares the dense 784-512-10 network of Mnist.main() with a ConvNet 5x5x8, max pool 2, dense 1152-10 network:
+ * multiply-accumulates per sample, ms per epoch and test accuracy after the same number of epochs.
+ *
+ * args: directory of the MNIST files
+ */
+public class ConvNetBenchmark {
+
+    /**
+     * train nn for epochs, @return ms per epoch and test accuracy
+     */
+    static double[] run(Network nn, List<InAndOut> train, List<InAndOut> test, int epochs, int computeBatch) {
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = epochs;
+        trainConfig.batches = 1;
+        trainConfig.rateDecay = 1;
+        trainConfig.miniBatch = 32;
+        trainConfig.computeBatch = computeBatch;
+        long start = System.nanoTime();
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+        double ms = (System.nanoTime() - start) / 1e6 / epochs;
+        return new double[] { ms, TrainingHelper.computeErrorAcc(test, nn)[1] };
+    }
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+        int epochs = 3;
+
+        Config denseConfig = new Config();
+        denseConfig.layer_sizes = new int[] { 784, 512, 10 };
+        denseConfig.rate = 0.05;
+        NeuralNet dense = new NeuralNet(denseConfig);
+
+        Config headConfig = new Config();
+        headConfig.layer_sizes = new int[] { 0, 10 };
+        headConfig.rate = 0.05;
+        ConvNet conv = new ConvNet(28, 28, 1, new int[][] { { 8, 5, 2 } }, headConfig);
+
+        double[] d = run(dense, train, test, epochs, 32);
+        double[] c = run(conv, train, test, epochs, 1);
+        NeuralNet.log(String.format("dense %s: %7d MACs/sample %6.0fms/epoch accuracy:%.4f", Arrays.toString(denseConfig.layer_sizes),
+                ConvNet.macs(denseConfig.layer_sizes), d[0], d[1]));
+        NeuralNet.log(String.format("%s: %7d MACs/sample %6.0fms/epoch accuracy:%.4f speedup:%.1fx", conv, conv.macs(), c[0], c[1], d[0] / c[0]));
+    }
+}
@@ -0,0 +1,164 @@
+package bruno.nn;
+
+import java.util.Arrays;
+
+/**
+ * Compressed sparse row storage of a row-major matrix, used for the layers of a pruned network.
+ *
+ * The non zero values of row j are values[rowStarts[j]..rowStarts[j+1][ and their columns are in cols, in increasing order.
+ * For NeuralNet the dense weights stay the reference, values is a packed copy refreshed when the weights are updated.
+ *
+ * @see NeuralNet#prune(int, double)
+ */
+public class CsrMatrix {
+
+    final int rows;
+    final int columns;
+    /**
+     * rows + 1 entries, rowStarts[rows] is the number of non zero values
+     */
+    final int[] rowStarts;
+    final int[] cols;
+    final double[] values;
+
+    CsrMatrix(int rows, int columns, int[] rowStarts, int[] cols, double[] values) {
+        this.rows = rows;
+        this.columns = columns;
+        this.rowStarts = rowStarts;
+        this.cols = cols;
+        this.values = values;
+    }
+
+    /**
+     * keep the non zero values of a dense row-major matrix
+     */
+    public static CsrMatrix of(double[] dense, int rows, int columns) {
+        int[] rowStarts = new int[rows + 1];
+        int nnz = 0;
+        for (int i = 0; i < rows * columns; i++)
+            if (dense[i] != 0)
+                nnz++;
+        int[] cols = new int[nnz];
+        double[] values = new double[nnz];
+        int p = 0;
+        for (int j = 0; j < rows; j++) {
+            rowStarts[j] = p;
+            for (int k = 0; k < columns; k++) {
+                double v = dense[j * columns + k];
+                if (v != 0) {
+                    cols[p] = k;
+                    values[p] = v;
+                    p++;
+                }
+            }
+        }
+        rowStarts[rows] = p;
+        return new CsrMatrix(rows, columns, rowStarts, cols, values);
+    }
+
+    /**
+     * @return the magnitude under which a fraction sparsity of the values of ws is,
+     * i.e. zeroing the values with |w| <= threshold prunes (at least) that fraction
+     */
+    static double threshold(double[] ws, double sparsity) {
+        int pruned = (int) Math.round(sparsity * ws.length);
+        if (pruned <= 0)
+            return -1;
+        double[] magnitudes = new double[ws.length];
+        for (int i = 0; i < ws.length; i++)
+            magnitudes[i] = Math.abs(ws[i]);
+        Arrays.sort(magnitudes);
+        return magnitudes[Math.min(pruned, ws.length) - 1];
+    }
+
+    public int nonZeros() {
+        return rowStarts[rows];
+    }
+
+    /**
+     * ratio of non zero values
+     */
+    public double density() {
+        return nonZeros() / (double) (rows * columns);
+    }
+
+    /**
+     * bytes of values, column indexes and row starts
+     */
+    public long sizeInBytes() {
+        return (long) Double.BYTES * values.length + Integer.BYTES * (long) (cols.length + rowStarts.length);
+    }
+
+    /**
+     * back to a dense row-major matrix
+     */
+    public double[] toDense() {
+        double[] dense = new double[rows * columns];
+        for (int j = 0; j < rows; j++)
+            for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++)
+                dense[j * columns + cols[p]] = values[p];
+        return dense;
+    }
+
+    // -- kernels, the same loops as Kernels but only over the non zero values of a row
+
+    /**
+     * @return sum of row j * x
+     */
+    public double dot(int j, double[] x) {
+        double z = 0;
+        for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++)
+            z += values[p] * x[cols[p]];
+        return z;
+    }
+
+    /**
+     * y += alpha * row j
+     */
+    public void axpy(int j, double alpha, double[] y) {
+        for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++)
+            y[cols[p]] += alpha * values[p];
+    }
+
+    /**
+     * same as Kernels.axpy(alpha, x, 0, dense, j * columns, columns) but only for the non zero positions of row j,
+     * i.e. the derivatives of the pruned weights are not computed
+     */
+    public void axpyPattern(int j, double alpha, double[] x, double[] dense) {
+        int wo = j * columns;
+        for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++)
+            dense[wo + cols[p]] += alpha * x[cols[p]];
+    }
+
+    /**
+     * same as Kernels.descend() for the non zero positions only, so that the pruned weights stay at 0, values is refreshed.
+     * dw is reset to 0, row by row
+     */
+    public void descend(double[] w, double[] dw, double dh, double rate) {
+        for (int j = 0; j < rows; j++) {
+            int wo = j * columns;
+            for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++) {
+                int i = wo + cols[p];
+                w[i] -= (dw[i] / dh) * rate;
+                values[p] = w[i];
+            }
+            Arrays.fill(dw, wo, wo + columns, 0);
+        }
+    }
+
+    /**
+     * set the pruned weights of w back to 0 and refresh values, after w was updated like a dense layer (e.g. by an Optimizer)
+     */
+    public void mask(double[] w) {
+        for (int j = 0; j < rows; j++) {
+            int next = j * columns;
+            for (int p = rowStarts[j]; p < rowStarts[j + 1]; p++) {
+                int i = j * columns + cols[p];
+                Arrays.fill(w, next, i, 0);
+                values[p] = w[i];
+                next = i + 1;
+            }
+            Arrays.fill(w, next, (j + 1) * columns, 0);
+        }
+    }
+}
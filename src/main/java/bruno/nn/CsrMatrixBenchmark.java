@@ -0,0 +1,72 @@
+package bruno.nn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trains a 784-512-10 network on MNIST (or on random clusters when the MNIST files are not found), then prunes its first
+ * layer to 90% in 3 steps with fine-tuning, and compares accuracy, latency and saved size of the dense and pruned (CsrMatrix) models
+ * args: directory of the MNIST files
+ */
+public class CsrMatrixBenchmark {
+
+    public static void main(String... args) throws IOException {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, 512, 10 };
+        config.rate = 0.01;
+        NeuralNet nn = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 10;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+        InferenceModel dense = InferenceModel.of(nn);
+        long denseBytes = savedBytes(nn);
+
+        // iterative pruning: 30%, 60%, 90%, each followed by an epoch of fine-tuning
+        trainConfig.epochs = 4;
+        trainConfig.pruneSparsity = 0.9;
+        trainConfig.pruneSteps = 3;
+        trainConfig.pruneEvery = 1;
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+        InferenceModel pruned = InferenceModel.of(nn);
+        long prunedBytes = savedBytes(nn);
+
+        double[][] inputs = new double[test.size()][];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = test.get(i).input;
+        double[] accDense = TrainingHelper.computeErrorAcc(test, dense);
+        double[] accPruned = TrainingHelper.computeErrorAcc(test, pruned);
+        int runs = 20000;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            double[] latDense = ParallelInferenceBenchmark.latencies(dense, inputs, runs);
+            double[] latPruned = ParallelInferenceBenchmark.latencies(pruned, inputs, runs);
+            if (warmup == 1) {
+                NeuralNet.log(String.format("dense:  accuracy:%.4f saved:%d bytes p50:%.1fus p99:%.1fus", accDense[1], denseBytes, latDense[0], latDense[1]));
+                NeuralNet.log(String.format("pruned: accuracy:%.4f saved:%d bytes p50:%.1fus p99:%.1fus density of layer 0:%.3f", accPruned[1],
+                        prunedBytes, latPruned[0], latPruned[1], nn.csr[0].density()));
+            }
+        }
+    }
+
+    static long savedBytes(NeuralNet nn) throws IOException {
+        File file = File.createTempFile("pruned", ".csv");
+        try {
+            CsvHelper.dumpNeuralNetToFile(nn, file.getPath());
+            return Files.size(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package bruno.nn;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.RoundingMode;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -10,6 +16,13 @@ import java.util.Locale;
 
 /**
  * simple csv parser/writer. It is meant to be compatible with CsvParser.py
+ *
+ * Extension of the format: the weights of a pruned layer are written in CSR form, a line with "csr" then the row starts,
+ * the columns and the values @see #dumpCsr(CsrMatrix, String). consumeNeuralNet() reads them back, CsvParser.py does not:
+ * only the files of networks which are not pruned are compatible with it.
+ *
+ * Networks are read and written one line at a time, so that the file of a network with off heap layers
+ * does not have to fit in a String @see OffHeapMatrix
  */
 public class CsvHelper {
 
@@ -49,14 +62,45 @@ public class CsvHelper {
     }
 
     public static int consume1d(String lines[], int y, double[] ds) {
+        return consume1d(lines, y, ds, 0, ds.length);
+    }
+
+    /**
+     * parse a single line into ds[offset..offset+n[
+     */
+    public static int consume1d(String lines[], int y, double[] ds, int offset, int n) {
         y = consumeComments(lines, y);
-        String tokens[] = lines[y].split(",");
-        y++;
-        for (int i = 0; i < ds.length; i++) {
-            ds[i] = Double.parseDouble(tokens[i]);
+        parse1d(lines[y], ds, offset, n);
+        return y + 1;
+    }
+
+    /**
+     * parse line into ds[offset..offset+n[
+     */
+    static void parse1d(String line, double[] ds, int offset, int n) {
+        String tokens[] = line.split(",");
+        for (int i = 0; i < n; i++) {
+            ds[offset + i] = Double.parseDouble(tokens[i]);
         }
-        return y;
+    }
+
+    static void parse1d(String line, int[] is) {
+        String tokens[] = line.split(",");
+        for (int i = 0; i < is.length; i++)
+            is[i] = Integer.parseInt(tokens[i].trim());
+    }
 
+    /**
+     * @return the next line which is not a comment
+     */
+    static String nextLine(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null)
+                throw new IOException("unexpected end of file");
+        } while (line.startsWith("#") || line.isBlank());
+        return line;
     }
 
     public static int consume2d(String[] content, int y, double[][] ds) {
@@ -65,28 +109,182 @@ public class CsvHelper {
         return y;
     }
 
-    public static void consumeFile(NeuralNet nn, String path) throws IOException {
-        String lines[] = Files.readString(Paths.get(path)).split("\n");
-        consumeNeuralNet(nn, lines);
+    /**
+     * parse a row-major matrix, one line per row
+     */
+    public static int consume2d(String[] content, int y, double[] ds, int cols) {
+        for (int i = 0; i < ds.length / cols; i++)
+            y = consume1d(content, y, ds, i * cols, cols);
+        return y;
+    }
+
+    /**
+     * parse a single line of ints into is
+     */
+    public static int consume1d(String lines[], int y, int[] is) {
+        y = consumeComments(lines, y);
+        parse1d(lines[y], is);
+        return y + 1;
+    }
+
+    /**
+     * @return true if the weights at line y are in CSR form @see #dumpCsr(CsrMatrix, String)
+     */
+    public static boolean isCsr(String lines[], int y) {
+        y = consumeComments(lines, y);
+        return lines[y].trim().equals(CSR);
+    }
+
+    /**
+     * parse weights written by dumpCsr() into a dense row-major matrix
+     */
+    public static int consumeCsr(String lines[], int y, double[] ds, int cols) {
+        y = consumeComments(lines, y) + 1;
+        int rows = ds.length / cols;
+        int[] rowStarts = new int[rows + 1];
+        y = consume1d(lines, y, rowStarts);
+        int nnz = rowStarts[rows];
+        int[] colIndexes = new int[nnz];
+        double[] values = new double[nnz];
+        // an empty matrix has empty lines, which are skipped like comments
+        if (nnz > 0) {
+            y = consume1d(lines, y, colIndexes);
+            y = consume1d(lines, y, values);
+        }
+        double[] dense = new CsrMatrix(rows, cols, rowStarts, colIndexes, values).toDense();
+        System.arraycopy(dense, 0, ds, 0, ds.length);
+        return y;
+    }
+
+    /**
+     * parse the weights of a layer, either dense (one line per row) or in CSR form
+     */
+    public static int consumeWeights(String lines[], int y, double[] ds, int cols) {
+        if (isCsr(lines, y))
+            return consumeCsr(lines, y, ds, cols);
+        return consume2d(lines, y, ds, cols);
+    }
+
+    /**
+     * same as consumeWeights(String[], ...), reading the lines from reader
+     * @return true if the weights are in CSR form
+     */
+    public static boolean consumeWeights(BufferedReader reader, double[] ds, int cols) throws IOException {
+        String line = nextLine(reader);
+        int rows = ds.length / cols;
+        if (!line.trim().equals(CSR)) {
+            parse1d(line, ds, 0, cols);
+            for (int i = 1; i < rows; i++)
+                parse1d(nextLine(reader), ds, i * cols, cols);
+            return false;
+        }
+        int[] rowStarts = new int[rows + 1];
+        parse1d(nextLine(reader), rowStarts);
+        int nnz = rowStarts[rows];
+        int[] colIndexes = new int[nnz];
+        double[] values = new double[nnz];
+        // an empty matrix has empty lines, which are skipped like comments
+        if (nnz > 0) {
+            parse1d(nextLine(reader), colIndexes);
+            parse1d(nextLine(reader), values, 0, nnz);
+        }
+        double[] dense = new CsrMatrix(rows, cols, rowStarts, colIndexes, values).toDense();
+        System.arraycopy(dense, 0, ds, 0, ds.length);
+        return true;
+    }
+
+    public static void consumeFile(Network nn, String path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            if (nn instanceof FloatNeuralNet)
+                consumeNeuralNet((FloatNeuralNet) nn, reader);
+            else
+                consumeNeuralNet((NeuralNet) nn, reader);
+        }
+    }
+
+    public static void consumeNeuralNet(FloatNeuralNet nn, String lines[]) throws IOException {
+        consumeNeuralNet(nn, new BufferedReader(new StringReader(String.join("\n", lines))));
+    }
+
+    /**
+     * same as for NeuralNet, the values are parsed as double then narrowed to float
+     */
+    public static void consumeNeuralNet(FloatNeuralNet nn, BufferedReader reader) throws IOException {
+        for (int l = 0; l < nn.config.layer_sizes.length - 1; l++) {
+            double[] ws = new double[nn.ws[l].length];
+            consumeWeights(reader, ws, nn.config.layer_sizes[l]);
+            for (int i = 0; i < ws.length; i++)
+                nn.ws[l][i] = (float) ws[i];
+            double[] bs = new double[nn.bs[l].length];
+            parse1d(nextLine(reader), bs, 0, bs.length);
+            for (int k = 0; k < bs.length; k++)
+                nn.bs[l][k] = (float) bs[k];
+        }
     }
 
     public static void consumeNeuralNet(NeuralNet nn, String lines[]) throws IOException {
-        int y = 0;
+        consumeNeuralNet(nn, new BufferedReader(new StringReader(String.join("\n", lines))));
+    }
+
+    public static void consumeNeuralNet(NeuralNet nn, BufferedReader reader) throws IOException {
         for (int l = 0; l < nn.config.layer_sizes.length - 1; l++) {
-            y = consume2d(lines, y, nn.ws[l]);
-            y = consume1d(lines, y, nn.bs[l]);
+            if (nn.ows[l] != null) {
+                // one row at a time
+                double[] row = new double[nn.config.layer_sizes[l]];
+                for (int j = 0; j < nn.config.layer_sizes[l + 1]; j++) {
+                    parse1d(nextLine(reader), row, 0, row.length);
+                    nn.ows[l].setRow(j, row);
+                }
+            } else {
+                boolean pruned = consumeWeights(reader, nn.ws[l], nn.config.layer_sizes[l]);
+                nn.csr[l] = pruned ? CsrMatrix.of(nn.ws[l], nn.config.layer_sizes[l + 1], nn.config.layer_sizes[l]) : null;
+            }
+            parse1d(nextLine(reader), nn.bs[l], 0, nn.bs[l].length);
         }
     }
 
     // -- dumping ,i.e. formatting ------------------------------------------------
     public static String dump1d(double[] vs, String info) {
-        String s = info + (info.isBlank() ? "" : "\n");
-        for (int i = 0; i < vs.length; i++) {
+        return dump1d(vs, 0, vs.length, info);
+    }
+
+    /**
+     * dump vs[offset..offset+n[ on a single line
+     */
+    public static String dump1d(double[] vs, int offset, int n, String info) {
+        StringBuilder s = new StringBuilder(info + (info.isBlank() ? "" : "\n"));
+        for (int i = 0; i < n; i++) {
             if (i > 0)
-                s = s + ", ";
-            s = s + formatAlaPython(vs[i]);
+                s.append(", ");
+            s.append(formatAlaPython(vs[offset + i]));
 
         }
+        return s.toString();
+    }
+
+    public static String dump1d(int[] vs, String info) {
+        StringBuilder s = new StringBuilder(info + (info.isBlank() ? "" : "\n"));
+        for (int i = 0; i < vs.length; i++) {
+            if (i > 0)
+                s.append(", ");
+            s.append(vs[i]);
+        }
+        return s.toString();
+    }
+
+    /**
+     * first line of a matrix in CSR form
+     */
+    static final String CSR = "csr";
+
+    /**
+     * dump a matrix in CSR form: a line with "csr", then the row starts, the columns and the values, one line each
+     */
+    public static String dumpCsr(CsrMatrix m, String info) {
+        String s = info + (info.isBlank() ? "" : "\n") + CSR;
+        s = s + "\n" + dump1d(m.rowStarts, "");
+        s = s + "\n" + dump1d(m.cols, "");
+        s = s + "\n" + dump1d(m.values, "");
         return s;
     }
 
@@ -100,6 +298,19 @@ public class CsvHelper {
         return s;
     }
 
+    /**
+     * dump a row-major matrix, one line per row
+     */
+    public static String dump2d(double[] vs, int cols, String info) {
+        String s = info + (info.isBlank() ? "" : "\n");
+        for (int i = 0; i < vs.length / cols; i++) {
+            if (i > 0)
+                s = s + "\n";
+            s = s + dump1d(vs, i * cols, cols, info.isBlank() ? "" : (info + "[" + (i) + "]"));
+        }
+        return s;
+    }
+
     public static String dump3d(double[][][] vsss, String info) {
         String s = info + (info.isBlank() ? "" : "\n");
         for (int i = 0; i < vsss.length; i++) {
@@ -111,17 +322,58 @@ public class CsvHelper {
     }
 
     public static String dumpNeuralNet(NeuralNet nn) {
-        String csv = "";
+        StringWriter csv = new StringWriter();
+        try {
+            dumpNeuralNet(nn, csv);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return csv.toString();
+    }
+
+    /**
+     * write the network one row at a time
+     */
+    public static void dumpNeuralNet(NeuralNet nn, Writer out) throws IOException {
         for (int l = 0; l < nn.config.layer_sizes.length - 1; l++) {
-            csv = csv + "\n# layer " + (l);
-            csv = csv + "\n" + dump2d(nn.ws[l], "#ws[" + (l) + "]");
-            csv = csv + "\n" + dump1d(nn.bs[l], "#bs[" + (l) + "]");
+            int cols = nn.config.layer_sizes[l];
+            out.write("\n# layer " + (l));
+            out.write("\n#ws[" + (l) + "]");
+            // the pruned layers are smaller in CSR form
+            if (nn.ows[l] != null) {
+                double[] row = new double[cols];
+                for (int j = 0; j < nn.ows[l].rows; j++) {
+                    nn.ows[l].getRow(j, row);
+                    out.write("\n");
+                    out.write(dump1d(row, ""));
+                }
+            } else if (nn.csr[l] != null) {
+                out.write("\n");
+                out.write(dumpCsr(nn.csr[l], ""));
+            } else {
+                // same as dump2d()
+                for (int j = 0; j < nn.ws[l].length / cols; j++) {
+                    out.write("\n");
+                    out.write(dump1d(nn.ws[l], j * cols, cols, "#ws[" + (l) + "][" + j + "]"));
+                }
+            }
+            out.write("\n");
+            out.write(dump1d(nn.bs[l], "#bs[" + (l) + "]"));
         }
-        return csv;
     }
 
-    public static void dumpNeuralNetToFile(NeuralNet nn, String path) throws IOException {
-        Files.write(Paths.get(path), dumpNeuralNet(nn).getBytes());
+    /**
+     * the float values are widened to double, i.e. the file is the same as for the equivalent NeuralNet
+     */
+    public static String dumpNeuralNet(FloatNeuralNet nn) {
+        return dumpNeuralNet(nn.toNeuralNet());
+    }
+
+    public static void dumpNeuralNetToFile(Network nn, String path) throws IOException {
+        NeuralNet dnn = nn instanceof FloatNeuralNet ? ((FloatNeuralNet) nn).toNeuralNet() : (NeuralNet) nn;
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(path))) {
+            dumpNeuralNet(dnn, out);
+        }
     }
 
-}
\ No newline at end of file
+}
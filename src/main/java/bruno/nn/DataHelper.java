@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.function.DoubleSupplier;
 
 import bruno.nn.TrainingHelper.InAndOut;
@@ -82,6 +84,64 @@ public class DataHelper {
         }
     }
 
+    /**
+     * the non zero values of an input, as index/value pairs
+     * 
+     * @see NeuralNet#computeFwdBwd(double[], SparseInput, double[])
+     */
+    static class SparseInput {
+        int[] indexes;
+        double[] values;
+
+        SparseInput(double[] vs) {
+            int nnz = 0;
+            for (int i = 0; i < vs.length; i++)
+                if (vs[i] != 0)
+                    nnz++;
+            indexes = new int[nnz];
+            values = new double[nnz];
+            int p = 0;
+            for (int i = 0; i < vs.length; i++) {
+                if (vs[i] != 0) {
+                    indexes[p] = i;
+                    values[p] = vs[i];
+                    p++;
+                }
+            }
+        }
+    }
+
+    /**
+     * ratio of non zero values
+     */
+    public static double density(double[] vs) {
+        int nnz = 0;
+        for (int i = 0; i < vs.length; i++)
+            if (vs[i] != 0)
+                nnz++;
+        return nnz / (double) vs.length;
+    }
+
+    /**
+     * attach a sparse representation of the input to samples which have a density below maxDensity, 
+     * remove it from the others
+     * @return the average density of inputs, 0 when there are no samples
+     */
+    public static double sparsify(List<InAndOut> samples, double maxDensity) {
+        double acc = 0;
+        for (InAndOut sample : samples) {
+            double density = density(sample.input);
+            acc += density;
+            if (density < maxDensity) {
+                if (sample.sparse == null)
+                    sample.sparse = new SparseInput(sample.input);
+            } else {
+                sample.sparse = null;
+            }
+        }
+        return samples.isEmpty() ? 0 : acc / samples.size();
+    }
+
     /**
      * return an array filled with 0
      */
@@ -90,8 +150,7 @@ public class DataHelper {
     }
 
     public static void zeros(double[] vs) {
-        for (int i = 0; i < vs.length; i++)
-            vs[i] = 0;
+        Arrays.fill(vs, 0);
     }
 
     public static void zeros2d(double[][] vs) {
@@ -99,6 +158,16 @@ public class DataHelper {
             zeros(vs[i]);
     }
 
+    /**
+     * to[i] += from[i] for i in part [part/parts] of the arrays, so that several threads can each add a part
+     */
+    public static void addPart(double[] from, double[] to, int part, int parts) {
+        int start = (int) ((long) to.length * part / parts);
+        int end = (int) ((long) to.length * (part + 1) / parts);
+        for (int i = start; i < end; i++)
+            to[i] += from[i];
+    }
+
     public static void fill(DoubleSupplier rand, double[] vs) {
         for (int i = 0; i < vs.length; i++)
             vs[i] = rand.getAsDouble();
@@ -203,4 +272,24 @@ public class DataHelper {
             data.get(i).input[c] = v;
         }
     }
+
+    /**
+     * samples around one random center per category, inputs in [0;1] like MNIST pixels
+     */
+    static List<InAndOut> clusters(int inputs, int categories, int n, int seed) {
+        Random centersRandom = new Random(0);
+        double[][] centers = new double[categories][inputs];
+        for (double[] center : centers)
+            fill(centersRandom::nextDouble, center);
+        Random random = new Random(seed);
+        List<InAndOut> retVal = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int category = i % categories;
+            double[] input = Arrays.copyOf(centers[category], inputs);
+            for (int k = 0; k < inputs; k++)
+                input[k] = Math.max(0, Math.min(1, input[k] + random.nextGaussian() * 0.3));
+            retVal.add(new InAndOut(input, toArgmax(categories, category)));
+        }
+        return retVal;
+    }
 }
@@ -0,0 +1,64 @@
+package bruno.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Knowledge distillation: a small student network is trained to reproduce the outputs of a large teacher network.
+ *
+ * The teacher outputs are computed once before training, in a single float array. The student is then trained by
+ * TrainingHelper.train() against a blend of the hard labels and of the teacher outputs, computed once into a double[] target
+ * per sample since training takes double targets:
+ * expected = hardWeight * label + (1 - hardWeight) * teacher
+ * The error function is the squared error of the output activations, so blending the targets is the same as blending the 2 errors.
+ */
+public class Distillation {
+
+    /**
+     * outputs of the teacher for all samples, [samples x outputs] row-major.
+     * The soft targets do not need double precision, the array is only kept until blend() has computed the targets
+     */
+    public static float[] teacherOutputs(Predictor teacher, List<InAndOut> samples) {
+        int outputs = samples.get(0).expected.length;
+        float[] retVal = new float[samples.size() * outputs];
+        for (int i = 0; i < samples.size(); i++) {
+            double[] output = teacher.computeFwd(samples.get(i).input);
+            for (int j = 0; j < outputs; j++)
+                retVal[i * outputs + j] = (float) output[j];
+        }
+        return retVal;
+    }
+
+    /**
+     * @return samples with the same inputs, and with the blend of their label and of the teacher outputs as expected
+     * @param hardWeight weight of the labels, 1 is plain training and 0 trains on the teacher outputs only
+     */
+    public static List<InAndOut> blend(List<InAndOut> samples, float[] teacherOutputs, double hardWeight) {
+        List<InAndOut> retVal = new ArrayList<>(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            InAndOut sample = samples.get(i);
+            int outputs = sample.expected.length;
+            double[] expected = new double[outputs];
+            for (int j = 0; j < outputs; j++)
+                expected[j] = hardWeight * sample.expected[j] + (1 - hardWeight) * teacherOutputs[i * outputs + j];
+            retVal.add(new InAndOut(sample.input, expected));
+        }
+        return retVal;
+    }
+
+    /**
+     * train student on trainData, with the outputs of teacher as soft targets @see TrainingHelper#train(List, List, Network, TrainConfig)
+     */
+    public static void train(Predictor teacher, List<InAndOut> trainData, List<InAndOut> testData, Network student, TrainConfig trainConfig,
+            double hardWeight) {
+        long start = System.currentTimeMillis();
+        float[] cache = teacherOutputs(teacher, trainData);
+        if (NeuralNet.info)
+            NeuralNet.log("teacher outputs of " + trainData.size() + " samples: " + Float.BYTES * (long) cache.length + " bytes in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        TrainingHelper.train(blend(trainData, cache, hardWeight), testData, student, trainConfig);
+    }
+}
@@ -0,0 +1,66 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trains a 784-512-10 teacher on MNIST (or on random clusters when the MNIST files are not found), then a 784-64-10 student
+ * with and without Distillation from the teacher, and compares their accuracy and latency
+ * args: directory of the MNIST files
+ */
+public class DistillationBenchmark {
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        NeuralNet teacher = new NeuralNet(config(512));
+        TrainingHelper.train(train, List.of(), teacher, trainConfig());
+        InferenceModel teacherModel = InferenceModel.of(teacher);
+
+        // the students are cheaper, they get more epochs
+        TrainConfig studentConfig = trainConfig();
+        studentConfig.epochs = 10;
+        NeuralNet hard = new NeuralNet(config(64));
+        TrainingHelper.train(train, List.of(), hard, studentConfig);
+        NeuralNet student = new NeuralNet(config(64));
+        Distillation.train(teacherModel, train, List.of(), student, studentConfig, 0.5);
+        InferenceModel studentModel = InferenceModel.of(student);
+
+        double[][] inputs = new double[test.size()][];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = test.get(i).input;
+        double accTeacher = TrainingHelper.computeErrorAcc(test, teacherModel)[1];
+        double accHard = TrainingHelper.computeErrorAcc(test, InferenceModel.of(hard))[1];
+        double accStudent = TrainingHelper.computeErrorAcc(test, studentModel)[1];
+        int runs = 20000;
+        ParallelInferenceBenchmark.latencies(teacherModel, inputs, runs);
+        ParallelInferenceBenchmark.latencies(studentModel, inputs, runs);
+        double[] latTeacher = ParallelInferenceBenchmark.latencies(teacherModel, inputs, runs);
+        double[] latStudent = ParallelInferenceBenchmark.latencies(studentModel, inputs, runs);
+        NeuralNet.log(String.format("teacher 784-512-10:           accuracy:%.4f p50:%.1fus", accTeacher, latTeacher[0]));
+        NeuralNet.log(String.format("student 784-64-10 labels only: accuracy:%.4f", accHard));
+        NeuralNet.log(String.format("student 784-64-10 distilled:   accuracy:%.4f p50:%.1fus speedup:%.1fx", accStudent, latStudent[0],
+                latTeacher[0] / latStudent[0]));
+    }
+
+    static Config config(int hidden) {
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, hidden, 10 };
+        config.rate = 0.01;
+        return config;
+    }
+
+    static TrainConfig trainConfig() {
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 10;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        return trainConfig;
+    }
+}
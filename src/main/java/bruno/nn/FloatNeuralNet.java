@@ -0,0 +1,395 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bruno.nn.DataHelper.SparseInput;
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Same as NeuralNet, but all buffers are float instead of double: this halves the memory of the model and
+ * the memory traffic of the fwd/bwd loops, which are bound by memory bandwidth for large layers.
+ *
+ * Inputs and outputs are still double[], for compatibility with the samples
+ *
+ * @see Config#float32
+ */
+public class FloatNeuralNet implements Network {
+
+    /**
+     * values of z for neurons before the activation function
+     */
+    float[][] zs;
+
+    /**
+     * when Config.signMasks is set, replaces zs: bit j of masks[l] is set when z of neuron j of layer l is < 0
+     */
+    long[][] masks;
+
+    /**
+     * layers, i.e. neurons activation
+     */
+    float[][] ls;
+
+    /**
+     * weights, row-major per layer: the weight from neuron k of l[i] to neuron j of l[i+1] is ws[i][j * layer_sizes[i] + k]
+     */
+    float[][] ws;
+    /**
+     * bias, one per neuron
+     */
+    float[][] bs;
+
+    /**
+     * number of forward passes
+     */
+    int dh;
+    /**
+     * network cost derivative vs derivative of: neuron activations for the last fwd pass
+     */
+    float dls[][];
+    /**
+     * accumulated network cost derivative vs derivative of: weights between neurons, same layout as ws
+     */
+    float dws[][];
+    /**
+     * accumulated network cost derivative vs derivative of: bias
+     */
+    float dbs[][];
+    /**
+     * optimizer state, same as NeuralNet.mws/mbs/vws/vbs in single precision
+     */
+    float[][] mws;
+    float[][] mbs;
+    float[][] vws;
+    float[][] vbs;
+    long steps;
+
+    /**
+     * the output layer widened to double, returned by computeFwd()
+     */
+    double[] output;
+
+    Config config;
+
+    int layers;
+
+    Kernels kernels;
+
+    public FloatNeuralNet(Config config) {
+        config.checkActivations();
+        if (config.frozen != null)
+            throw new IllegalArgumentException("FloatNeuralNet trains all layers, Config.frozen needs a double precision NeuralNet");
+        if (config.offHeapWeights > 0)
+            throw new IllegalArgumentException("FloatNeuralNet keeps its weights in float[], Config.offHeapWeights needs a double precision NeuralNet");
+        // one sample at a time, there are no batch buffers
+        MemoryPlanner.of(config, 0, config.checkpointEvery, Float.BYTES).checkBudget(config.memoryBudget);
+        this.config = config;
+        this.kernels = Kernels.create(config.vectorKernels);
+        layers = config.layer_sizes.length;
+
+        ws = new float[layers][];
+        bs = new float[layers][];
+        for (int i = 1; i < layers; i++) {
+            ws[i - 1] = new float[config.layer_sizes[i] * config.layer_sizes[i - 1]];
+            bs[i - 1] = new float[config.layer_sizes[i]];
+        }
+        allocateBuffers();
+        if (config.optimizer.hasM()) {
+            mws = zerosLike(ws);
+            mbs = zerosLike(bs);
+        }
+        if (config.optimizer.hasV()) {
+            vws = zerosLike(ws);
+            vbs = zerosLike(bs);
+        }
+
+        resetWBs();
+    }
+
+    static float[][] zerosLike(float[][] vs) {
+        float[][] retVal = new float[vs.length][];
+        for (int l = 0; l < vs.length; l++)
+            if (vs[l] != null)
+                retVal[l] = new float[vs[l].length];
+        return retVal;
+    }
+
+    /**
+     * creates a worker for data parallel training: weights and biases are shared with master,
+     * but the worker has its own activations and derivatives
+     */
+    public FloatNeuralNet(FloatNeuralNet master) {
+        this.config = master.config;
+        this.kernels = master.kernels;
+        this.layers = master.layers;
+        this.ws = master.ws;
+        this.bs = master.bs;
+        this.mws = master.mws;
+        this.mbs = master.mbs;
+        this.vws = master.vws;
+        this.vbs = master.vbs;
+        allocateBuffers();
+    }
+
+    private void allocateBuffers() {
+        ls = new float[layers][];
+        zs = new float[layers][];
+        masks = config.signMasks ? new long[layers][] : null;
+        dls = new float[layers][];
+        for (int i = 0; i < layers; i++) {
+            ls[i] = new float[config.layer_sizes[i]];
+            if (masks != null)
+                masks[i] = NeuralNet.newMask(config.layer_sizes[i]);
+            else
+                zs[i] = new float[config.layer_sizes[i]];
+            // we are not interested in the derivative of the cost over input layer
+            if (i > 0)
+                dls[i] = new float[config.layer_sizes[i]];
+        }
+        dws = new float[layers][];
+        dbs = new float[layers][];
+        for (int i = 1; i < layers; i++) {
+            dws[i - 1] = new float[config.layer_sizes[i] * config.layer_sizes[i - 1]];
+            dbs[i - 1] = new float[config.layer_sizes[i]];
+        }
+        output = new double[config.layer_sizes[layers - 1]];
+    }
+
+    @Override
+    public Config getConfig() {
+        return config;
+    }
+
+    @Override
+    public Network newWorker() {
+        return new FloatNeuralNet(this);
+    }
+
+    @Override
+    public void addDws(Network worker, int part, int parts) {
+        FloatNeuralNet w = (FloatNeuralNet) worker;
+        for (int l = 0; l < layers - 1; l++) {
+            addPart(w.dws[l], dws[l], part, parts);
+            addPart(w.dbs[l], dbs[l], part, parts);
+        }
+        if (part == 0)
+            dh += w.dh;
+    }
+
+    /**
+     * to[i] += from[i] for i in part [part/parts] of the arrays
+     */
+    static void addPart(float[] from, float[] to, int part, int parts) {
+        int start = (int) ((long) to.length * part / parts);
+        int end = (int) ((long) to.length * (part + 1) / parts);
+        for (int i = start; i < end; i++)
+            to[i] += from[i];
+    }
+
+    @Override
+    public double maxSparseDensity() {
+        return kernels.maxSparseDensity();
+    }
+
+    /**
+     * randomly populate weights, with the same random sequence as NeuralNet.resetWBs()
+     */
+    public void resetWBs() {
+        Random random = new Random(config.seed);
+        for (int l = 1; l < layers; l++) {
+            int nis = config.layer_sizes[l - 1];
+            for (int no = 0; no < config.layer_sizes[l]; no++) {
+                double normalizef = (config.normalizeInitial ? (1 + nis) : 1);
+                int wo = no * nis;
+                for (int ni = 0; ni < nis; ni++)
+                    ws[l - 1][wo + ni] = (float) ((random.nextDouble() - 0.5) * config.initial_weight_f * normalizef);
+                bs[l - 1][no] = (float) ((random.nextDouble() - 0.5) * config.initial_weight_f * normalizef);
+            }
+        }
+    }
+
+    @Override
+    public void resetDws() {
+        for (int li = 1; li < layers; li++) {
+            Arrays.fill(dws[li - 1], 0);
+            Arrays.fill(dbs[li - 1], 0);
+        }
+        dh = 0;
+    }
+
+    // -- fwd -----------------------------------------------------------------------------------
+
+    /**
+     * compute all the activations of neurons for a given layer
+     */
+    public void computeLayer(Activation act, float[] li, float[] wio, float[] bo, float lo[], float[] zo) {
+        computeLayer(act, li, wio, bo, lo, zo, null);
+    }
+
+    /**
+     * same as computeLayer(), z is stored in zo and/or its sign in mo when they are not null
+     */
+    void computeLayer(Activation act, float[] li, float[] wio, float[] bo, float lo[], float[] zo, long[] mo) {
+        int nis = li.length;
+        if (mo != null)
+            Arrays.fill(mo, 0);
+        for (int no = 0; no < lo.length; no++) {
+            float z = kernels.dot(li, 0, wio, no * nis, nis) + bo[no];
+            lo[no] = (float) act.apply(z);
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                NeuralNet.setSign(mo, no, z);
+        }
+    }
+
+    /**
+     * same as computeLayer() for the first layer, but only the non zero inputs are read
+     */
+    public void computeLayerSparse(Activation act, SparseInput li, float[] wio, float[] bo, float lo[], float[] zo) {
+        computeLayerSparse(act, li, wio, bo, lo, zo, null);
+    }
+
+    void computeLayerSparse(Activation act, SparseInput li, float[] wio, float[] bo, float lo[], float[] zo, long[] mo) {
+        int nis = config.layer_sizes[0];
+        if (mo != null)
+            Arrays.fill(mo, 0);
+        int[] indexes = li.indexes;
+        double[] values = li.values;
+        for (int no = 0; no < lo.length; no++) {
+            int wo = no * nis;
+            float z = 0;
+            for (int p = 0; p < indexes.length; p++)
+                z += (float) values[p] * wio[wo + indexes[p]];
+            z += bo[no];
+            lo[no] = (float) act.apply(z);
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                NeuralNet.setSign(mo, no, z);
+        }
+    }
+
+    long[] mask(int l) {
+        return masks == null ? null : masks[l];
+    }
+
+    @Override
+    public double[] computeFwd(double[] inputs) {
+        return computeFwd(inputs, null);
+    }
+
+    @Override
+    public double[] computeFwd(double[] inputs, SparseInput sparse) {
+        for (int i = 0; i < inputs.length; i++)
+            ls[0][i] = (float) inputs[i];
+
+        if (sparse != null)
+            computeLayerSparse(config.activation(1), sparse, ws[0], bs[0], ls[1], zs[1], mask(1));
+        else
+            computeLayer(config.activation(1), ls[0], ws[0], bs[0], ls[1], zs[1], mask(1));
+        for (int i = 2; i < layers; i++)
+            computeLayer(config.activation(i), ls[i - 1], ws[i - 1], bs[i - 1], ls[i], zs[i], mask(i));
+
+        float[] last = ls[layers - 1];
+        if (config.softmaxOutput())
+            Activation.softmax(last, 0, last.length);
+        for (int i = 0; i < last.length; i++)
+            output[i] = last[i];
+        return output;
+    }
+
+    //-- backtracking --------------------------------------
+
+    @Override
+    public void computeFwdBwd(double[] inputs, double[] expecteds) {
+        computeFwdBwd(inputs, null, expecteds);
+    }
+
+    @Override
+    public void computeFwdBwd(double[] inputs, SparseInput sparse, double[] expecteds) {
+        computeFwd(inputs, sparse);
+
+        for (int i = 1; i < layers; i++)
+            Arrays.fill(dls[i], 0);
+        dh += 1;
+
+        // output layer derivative depends on the error function, see NeuralNet.computeBwd()
+        boolean softmax = config.softmaxOutput();
+        for (int j = 0; j < config.layer_sizes[layers - 1]; j++)
+            dls[layers - 1][j] += (float) (softmax ? ls[layers - 1][j] - expecteds[j] : NeuralNet.errorFunctiond(ls[layers - 1][j], expecteds[j]));
+
+        for (int l = layers - 1; l > 0; l--) {
+            int nis = ls[l - 1].length;
+            Activation act = config.activation(l);
+            for (int j = 0; j < ls[l].length; j++) {
+                int wo = j * nis;
+                // derivative of cost vs z
+                float dCostZ = dls[l][j] * (float) (masks != null ? act.derivative(NeuralNet.isNegative(masks[l], j)) : act.derivative(zs[l][j]));
+                // derivative of z vs the weight is the activation of the previous layer' neuron, zero inputs can be skipped
+                if (l == 1 && sparse != null) {
+                    for (int p = 0; p < sparse.indexes.length; p++)
+                        dws[0][wo + sparse.indexes[p]] += dCostZ * (float) sparse.values[p];
+                } else {
+                    kernels.axpy(dCostZ, ls[l - 1], 0, dws[l - 1], wo, nis);
+                }
+                // derivative of z vs the bias is 1
+                dbs[l - 1][j] += dCostZ;
+                // derivative of z vs the previous neuron activation is the weight
+                if (l > 1)
+                    kernels.axpy(dCostZ, ws[l - 1], wo, dls[l - 1], 0, nis);
+            }
+        }
+    }
+
+    /**
+     * same as NeuralNet.applyDws(), the derivatives are reset in the same pass
+     */
+    @Override
+    public void applyDws() {
+        if (dh == 0)
+            return;
+        Optimizer optimizer = config.optimizer;
+        steps++;
+        for (int l = 1; l < layers; l++) {
+            if (optimizer == Optimizer.SGD)
+                kernels.descend(ws[l - 1], dws[l - 1], ws[l - 1].length, dh, (float) config.rate);
+            else
+                optimizer.update(ws[l - 1], dws[l - 1], mws[l - 1], vws == null ? null : vws[l - 1], ws[l - 1].length, dh, config, steps);
+            optimizer.update(bs[l - 1], dbs[l - 1], mbs == null ? null : mbs[l - 1], vbs == null ? null : vbs[l - 1], bs[l - 1].length, dh, config,
+                    steps);
+        }
+        dh = 0;
+    }
+
+    //-- conversion ---------------------------------------------------------------
+
+    /**
+     * narrow the weights and biases of a NeuralNet
+     */
+    public static FloatNeuralNet of(NeuralNet nn) {
+        FloatNeuralNet retVal = new FloatNeuralNet(nn.config);
+        for (int l = 0; l < nn.layers - 1; l++) {
+            for (int i = 0; i < nn.ws[l].length; i++)
+                retVal.ws[l][i] = (float) nn.ws[l][i];
+            for (int i = 0; i < nn.bs[l].length; i++)
+                retVal.bs[l][i] = (float) nn.bs[l][i];
+        }
+        return retVal;
+    }
+
+    /**
+     * widen the weights and biases to a NeuralNet
+     */
+    public NeuralNet toNeuralNet() {
+        NeuralNet retVal = new NeuralNet(config);
+        for (int l = 0; l < layers - 1; l++) {
+            for (int i = 0; i < ws[l].length; i++)
+                retVal.ws[l][i] = ws[l][i];
+            for (int i = 0; i < bs[l].length; i++)
+                retVal.bs[l][i] = bs[l][i];
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,65 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Compares the epoch time of retraining the output layer of a pretrained 784-512-10 network:
+ * all layers trained, first layer frozen, and first layer frozen with its output cached.
+ *
+ * args: directory of the MNIST files
+ */
+public class FrozenTrainingBenchmark {
+
+    /**
+     * retrain a copy of pretrained, @return ms per epoch and test accuracy
+     */
+    static double[] run(NeuralNet pretrained, boolean freeze, boolean cache, List<InAndOut> train, List<InAndOut> test) {
+        Config config = new Config();
+        config.layer_sizes = pretrained.config.layer_sizes;
+        config.rate = pretrained.config.rate;
+        config.frozen = freeze ? new boolean[] { true, false } : null;
+        NeuralNet nn = new NeuralNet(config);
+        for (int l = 0; l < nn.layers - 1; l++) {
+            System.arraycopy(pretrained.ws[l], 0, nn.ws[l], 0, nn.ws[l].length);
+            System.arraycopy(pretrained.bs[l], 0, nn.bs[l], 0, nn.bs[l].length);
+        }
+
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 5;
+        trainConfig.rateDecay = 1;
+        trainConfig.cacheFrozen = cache;
+        long start = System.nanoTime();
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+        double ms = (System.nanoTime() - start) / 1e6 / trainConfig.epochs;
+        return new double[] { ms, TrainingHelper.computeErrorAcc(test, nn)[1] };
+    }
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, 512, 10 };
+        config.rate = 0.01;
+        NeuralNet pretrained = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 10;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        TrainingHelper.train(train, List.of(), pretrained, trainConfig);
+
+        double[] all = run(pretrained, false, false, train, test);
+        double[] frozen = run(pretrained, true, false, train, test);
+        double[] cached = run(pretrained, true, true, train, test);
+        NeuralNet.log(String.format("all layers trained:      %.0fms/epoch accuracy:%.4f", all[0], all[1]));
+        NeuralNet.log(String.format("first layer frozen:      %.0fms/epoch accuracy:%.4f", frozen[0], frozen[1]));
+        NeuralNet.log(String.format("frozen, output cached:   %.0fms/epoch accuracy:%.4f speedup:%.1fx", cached[0], cached[1], all[0] / cached[0]));
+    }
+}
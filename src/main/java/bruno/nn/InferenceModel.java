@@ -0,0 +1,263 @@
+package bruno.nn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Frozen copy of a trained network, for inference only.
+ *
+ * Only weights and biases are kept, all layers packed in one array. The model is immutable, so it can be shared by any
+ * number of threads: the activations go to a Scratch, which is either given by the caller or confined to the calling thread.
+ *
+ * <pre>
+ * InferenceModel model = InferenceModel.of(nn);
+ * // in each thread
+ * InferenceModel.Scratch scratch = model.newScratch();
+ * model.predictInto(inputs, outputs, scratch);
+ * </pre>
+ */
+public final class InferenceModel implements Predictor {
+
+    /**
+     * number of samples computed together by predictInto(double[][]...), @see MatrixHelper
+     */
+    static final int BATCH = 32;
+
+    /**
+     * defines the number of neurons per layer
+     */
+    private final int[] layerSizes;
+    /**
+     * weights of all layers, row-major, layer after layer
+     */
+    private final double[] ws;
+    /**
+     * offset of the weights of each layer in ws, wOffsets[0] are the weights used to compute l[1]
+     */
+    private final int[] wOffsets;
+    /**
+     * biases of all layers, layer after layer
+     */
+    private final double[] bs;
+    /**
+     * offset of the biases of each layer in bs
+     */
+    private final int[] bOffsets;
+    /**
+     * kept weights of the pruned layers, null for the dense layers. Single samples are computed from them,
+     * batches still use the dense weights (where the pruned weights are 0) for the matrix-matrix products
+     */
+    private final CsrMatrix[] csrs;
+
+    /**
+     * activation function of each layer, copied from the Config @see Config#activation(int)
+     */
+    private final Activation[] activations;
+
+    private final Kernels kernels;
+
+    private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * buffers for the activations, a Scratch must not be used by 2 threads at the same time
+     */
+    public static final class Scratch {
+        /**
+         * activations for a single sample
+         */
+        final double[][] ls;
+        /**
+         * activations for BATCH samples, [BATCH x layer size] row-major
+         */
+        final double[][] bls;
+
+        Scratch(int[] layerSizes) {
+            ls = new double[layerSizes.length][];
+            bls = new double[layerSizes.length][];
+            for (int l = 0; l < layerSizes.length; l++) {
+                ls[l] = new double[layerSizes[l]];
+                bls[l] = new double[BATCH * layerSizes[l]];
+            }
+        }
+    }
+
+    /**
+     * @param pruned true for the layers to compute from their non zero weights
+     */
+    InferenceModel(Config config, double[][] layerWs, double[][] layerBs, boolean[] pruned) {
+        this.layerSizes = config.layer_sizes.clone();
+        this.activations = new Activation[layerSizes.length];
+        for (int l = 1; l < layerSizes.length; l++)
+            activations[l] = config.activation(l);
+        this.kernels = Kernels.create(config.vectorKernels);
+
+        int layers = layerSizes.length;
+        wOffsets = new int[layers];
+        bOffsets = new int[layers];
+        int wSize = 0;
+        int bSize = 0;
+        for (int l = 0; l < layers - 1; l++) {
+            wOffsets[l] = wSize;
+            bOffsets[l] = bSize;
+            wSize += layerSizes[l + 1] * layerSizes[l];
+            bSize += layerSizes[l + 1];
+        }
+        ws = new double[wSize];
+        bs = new double[bSize];
+        for (int l = 0; l < layers - 1; l++) {
+            System.arraycopy(layerWs[l], 0, ws, wOffsets[l], layerSizes[l + 1] * layerSizes[l]);
+            System.arraycopy(layerBs[l], 0, bs, bOffsets[l], layerSizes[l + 1]);
+        }
+        csrs = new CsrMatrix[layers];
+        for (int l = 0; l < layers - 1; l++)
+            if (pruned[l])
+                csrs[l] = CsrMatrix.of(layerWs[l], layerSizes[l + 1], layerSizes[l]);
+    }
+
+    /**
+     * copy the weights and biases of a trained network
+     */
+    public static InferenceModel of(NeuralNet nn) {
+        if (nn.hasOffHeapLayers())
+            throw new IllegalStateException("the layers of an InferenceModel are packed in one double[], off heap layers do not fit");
+        boolean[] pruned = new boolean[nn.layers];
+        for (int l = 0; l < nn.layers - 1; l++)
+            pruned[l] = nn.csr[l] != null;
+        return new InferenceModel(nn.config, nn.ws, nn.bs, pruned);
+    }
+
+    /**
+     * load weights and biases saved by CsvHelper.dumpNeuralNetToFile(), without allocating a NeuralNet
+     */
+    public static InferenceModel load(Config config, String path) throws IOException {
+        String lines[] = Files.readString(Paths.get(path)).split("\n");
+        int layers = config.layer_sizes.length;
+        double[][] layerWs = new double[layers][];
+        double[][] layerBs = new double[layers][];
+        boolean[] pruned = new boolean[layers];
+        int y = 0;
+        for (int l = 0; l < layers - 1; l++) {
+            pruned[l] = CsvHelper.isCsr(lines, y);
+            layerWs[l] = new double[config.layer_sizes[l + 1] * config.layer_sizes[l]];
+            layerBs[l] = new double[config.layer_sizes[l + 1]];
+            y = CsvHelper.consumeWeights(lines, y, layerWs[l], config.layer_sizes[l]);
+            y = CsvHelper.consume1d(lines, y, layerBs[l]);
+        }
+        return new InferenceModel(config, layerWs, layerBs, pruned);
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(layerSizes);
+    }
+
+    public int getInputSize() {
+        return layerSizes[0];
+    }
+
+    public int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * defines the number of neurons per layer
+     */
+    public int[] getLayerSizes() {
+        return layerSizes.clone();
+    }
+
+    /**
+     * compute the outputs of a single sample, using the scratch of the calling thread
+     * @return the output layer of the thread's scratch, i.e. it is overridden by the next call from the same thread
+     */
+    @Override
+    public double[] computeFwd(double[] inputs) {
+        Scratch scratch = scratches.get();
+        double[][] ls = scratch.ls;
+        predictInto(inputs, ls[ls.length - 1], scratch);
+        return ls[ls.length - 1];
+    }
+
+    /**
+     * compute the outputs of a single sample
+     * @param output receives the activations of the output layer
+     */
+    public void predictInto(double[] input, double[] output, Scratch scratch) {
+        double[][] ls = scratch.ls;
+        System.arraycopy(input, 0, ls[0], 0, layerSizes[0]);
+        for (int l = 1; l < layerSizes.length; l++) {
+            computeLayer(l, ls[l - 1], ls[l], 0, layerSizes[l]);
+            finishLayer(l, ls[l]);
+        }
+        if (output != ls[ls.length - 1])
+            System.arraycopy(ls[ls.length - 1], 0, output, 0, output.length);
+    }
+
+    /**
+     * compute the activations of neurons [from;to[ of layer l, finishLayer() must be called once all neurons of the layer are computed
+     */
+    void computeLayer(int l, double[] li, double[] lo, int from, int to) {
+        int nis = layerSizes[l - 1];
+        int wo = wOffsets[l - 1];
+        int bo = bOffsets[l - 1];
+        CsrMatrix csr = csrs[l - 1];
+        Activation act = activations[l];
+        if (csr != null) {
+            for (int no = from; no < to; no++)
+                lo[no] = act.apply(csr.dot(no, li) + bs[bo + no]);
+        } else {
+            for (int no = from; no < to; no++)
+                lo[no] = act.apply(kernels.dot(li, 0, ws, wo + no * nis, nis) + bs[bo + no]);
+        }
+    }
+
+    /**
+     * the part of the activation function which needs the whole layer l, i.e. softmax
+     */
+    void finishLayer(int l, double[] lo) {
+        if (activations[l] == Activation.SOFTMAX)
+            Activation.softmax(lo, 0, layerSizes[l]);
+    }
+
+    /**
+     * compute the outputs of several samples, the samples are computed BATCH at a time as matrix-matrix products
+     * @param outputs receives the activations of the output layer, one array per sample
+     */
+    public void predictInto(double[][] inputs, double[][] outputs, Scratch scratch) {
+        double[][] bls = scratch.bls;
+        int layers = layerSizes.length;
+        int nis0 = layerSizes[0];
+        int nosLast = layerSizes[layers - 1];
+        for (int from = 0; from < inputs.length; from += BATCH) {
+            int n = Math.min(BATCH, inputs.length - from);
+            for (int i = 0; i < n; i++)
+                System.arraycopy(inputs[from + i], 0, bls[0], i * nis0, nis0);
+
+            for (int l = 1; l < layers; l++) {
+                int nis = layerSizes[l - 1];
+                int nos = layerSizes[l];
+                double[] lo = bls[l];
+                MatrixHelper.broadcastRows(bs, bOffsets[l - 1], lo, 0, n, nos);
+                MatrixHelper.multiplyABt(bls[l - 1], 0, ws, wOffsets[l - 1], lo, 0, n, nos, nis);
+                activations[l].apply(lo, 0, lo, 0, n * nos);
+                if (activations[l] == Activation.SOFTMAX)
+                    for (int i = 0; i < n; i++)
+                        Activation.softmax(lo, i * nos, nos);
+            }
+
+            for (int i = 0; i < n; i++)
+                System.arraycopy(bls[layers - 1], i * nosLast, outputs[from + i], 0, nosLast);
+        }
+    }
+
+    /**
+     * same as predictInto(), with newly allocated outputs and the scratch of the calling thread
+     */
+    public double[][] predict(double[][] inputs) {
+        double[][] outputs = new double[inputs.length][getOutputSize()];
+        predictInto(inputs, outputs, scratches.get());
+        return outputs;
+    }
+}
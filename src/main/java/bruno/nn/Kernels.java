@@ -0,0 +1,63 @@
+package bruno.nn;
+
+/**
+ * The inner loops of NeuralNet, i.e. the ones that are run once per weight.
+ * 
+ * ScalarKernels is the plain java version, VectorKernels uses the (incubating) Java Vector API 
+ * 
+ * @see NeuralNet.Config#vectorKernels
+ */
+public interface Kernels {
+
+    /**
+     * @return sum of a[aOff+i]*b[bOff+i] for i in [0;n[
+     */
+    double dot(double[] a, int aOff, double[] b, int bOff, int n);
+
+    /**
+     * y[yOff+i] += alpha * x[xOff+i] for i in [0;n[
+     */
+    void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n);
+
+    /**
+     * gradient descent step: w[i] -= (dw[i] / dh) * rate for i in [0;n[, and dw is reset to 0 in the same pass
+     */
+    void descend(double[] w, double[] dw, int n, double dh, double rate);
+
+    /**
+     * ratio of non zero inputs under which reading only the non zero inputs is faster than the dense loops of these kernels
+     */
+    double maxSparseDensity();
+
+    // single precision versions, used by FloatNeuralNet
+
+    float dot(float[] a, int aOff, float[] b, int bOff, int n);
+
+    void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n);
+
+    /**
+     * float version of descend(double[], ...), dw is reset to 0 as well
+     */
+    void descend(float[] w, float[] dw, int n, float dh, float rate);
+
+    /**
+     * int8 version of dot, used by QuantizedModel: the products are accumulated in an int
+     */
+    int dot(byte[] a, int aOff, byte[] b, int bOff, int n);
+
+    /**
+     * returns the vector kernels if requested and available, the scalar kernels otherwise
+     */
+    static Kernels create(boolean vector) {
+        if (vector) {
+            try {
+                // loaded by name, so that a JVM started without --add-modules jdk.incubator.vector can still use the scalar kernels  
+                return (Kernels) Class.forName("bruno.nn.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (NeuralNet.info)
+                    NeuralNet.log("vector kernels not available, falling back to scalar: " + e);
+            }
+        }
+        return new ScalarKernels();
+    }
+}
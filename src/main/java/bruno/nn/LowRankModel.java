@@ -0,0 +1,353 @@
+package bruno.nn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trained network where some layers are replaced by their best rank r approximation, for inference only.
+ *
+ * A factored layer ws[nos x nis] ~ left[nos x r] * right[r x nis] is computed as 2 thin matrix-vector products:
+ * t = right * l, then z = left * t + b, i.e. r * (nis + nos) multiply-adds instead of nis * nos.
+ * The factors come from the truncated SVD of the weights @see Svd
+ *
+ * Like InferenceModel, it is immutable and can be shared by threads.
+ */
+public final class LowRankModel implements Predictor {
+
+    /**
+     * defines the number of neurons per layer
+     */
+    private final int[] layerSizes;
+    /**
+     * rank of each layer, 0 for the layers which are kept dense
+     */
+    private final int[] ranks;
+    /**
+     * the weights of the dense layers, row-major like NeuralNet.ws, or the left factor [nos x rank] of the factored layers
+     */
+    private final double[][] lefts;
+    /**
+     * the right factor [rank x nis] of the factored layers, null for the dense layers
+     */
+    private final double[][] rights;
+    private final double[][] bs;
+    /**
+     * activation function of each layer @see Config#activation(int)
+     */
+    private final Activation[] activations;
+
+    private final Kernels kernels;
+
+    private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * buffers for the activations, a Scratch must not be used by 2 threads at the same time
+     */
+    public static final class Scratch {
+        final double[][] ls;
+        /**
+         * right * l for the factored layers
+         */
+        final double[][] ts;
+
+        Scratch(int[] layerSizes, int[] ranks) {
+            ls = new double[layerSizes.length][];
+            ts = new double[layerSizes.length][];
+            for (int l = 0; l < layerSizes.length; l++) {
+                ls[l] = new double[layerSizes[l]];
+                ts[l] = new double[ranks[l]];
+            }
+        }
+    }
+
+    private LowRankModel(Config config, int[] ranks, double[][] lefts, double[][] rights, double[][] bs) {
+        this.layerSizes = config.layer_sizes.clone();
+        this.activations = new Activation[layerSizes.length];
+        for (int l = 1; l < layerSizes.length; l++)
+            activations[l] = config.activation(l);
+        this.kernels = Kernels.create(config.vectorKernels);
+        this.ranks = ranks;
+        this.lefts = lefts;
+        this.rights = rights;
+        this.bs = bs;
+    }
+
+    /**
+     * the truncated SVD of each layer l up to maxRanks[l], null for the layers which stay dense (missing or 0 rank)
+     */
+    public static Svd[] decompose(NeuralNet nn, int... maxRanks) {
+        checkOnHeap(nn);
+        Svd[] svds = new Svd[nn.layers];
+        for (int l = 0; l < nn.layers - 1 && l < maxRanks.length; l++)
+            if (maxRanks[l] > 0)
+                svds[l] = Svd.truncated(nn.ws[l], nn.config.layer_sizes[l + 1], nn.config.layer_sizes[l], maxRanks[l], nn.config.seed);
+        return svds;
+    }
+
+    /**
+     * @param ranks rank of each layer (ranks[0] is used for ws[0]), 0 to keep the layer dense
+     */
+    public static LowRankModel of(NeuralNet nn, int... ranks) {
+        return of(nn, decompose(nn, ranks), ranks);
+    }
+
+    /**
+     * same as of(nn, ranks), with decompositions which are already computed, so that several ranks can be tried
+     */
+    public static LowRankModel of(NeuralNet nn, Svd[] svds, int... ranks) {
+        checkOnHeap(nn);
+        int layers = nn.layers;
+        int[] rs = new int[layers];
+        double[][] lefts = new double[layers][];
+        double[][] rights = new double[layers][];
+        double[][] bs = new double[layers][];
+        for (int l = 0; l < layers - 1; l++) {
+            rs[l] = l < ranks.length && svds[l] != null ? Math.min(ranks[l], svds[l].rank) : 0;
+            if (rs[l] > 0) {
+                double[][] factors = svds[l].factors(rs[l]);
+                lefts[l] = factors[0];
+                rights[l] = factors[1];
+            } else {
+                lefts[l] = nn.ws[l].clone();
+            }
+            bs[l] = nn.bs[l].clone();
+        }
+        return new LowRankModel(nn.config, rs, lefts, rights, bs);
+    }
+
+    /**
+     * the layers are factored from ws[l], off heap layers are not supported @see Config#offHeapWeights
+     */
+    static void checkOnHeap(NeuralNet nn) {
+        for (int l = 0; l < nn.layers - 1; l++)
+            if (nn.ws[l] == null)
+                throw new IllegalArgumentException("layer " + l + " is off heap, it can not be factored");
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(layerSizes, ranks);
+    }
+
+    /**
+     * multiply-adds per sample
+     */
+    public long flops() {
+        long retVal = 0;
+        for (int l = 0; l < layerSizes.length - 1; l++)
+            retVal += flops(layerSizes[l], layerSizes[l + 1], ranks[l]);
+        return retVal;
+    }
+
+    static long flops(int nis, int nos, int rank) {
+        return rank > 0 ? (long) rank * (nis + nos) : (long) nis * nos;
+    }
+
+    /**
+     * @return the output layer of the thread's scratch, i.e. it is overridden by the next call from the same thread
+     */
+    @Override
+    public double[] computeFwd(double[] inputs) {
+        Scratch scratch = scratches.get();
+        double[][] ls = scratch.ls;
+        predictInto(inputs, ls[ls.length - 1], scratch);
+        return ls[ls.length - 1];
+    }
+
+    /**
+     * compute the outputs of a single sample
+     * @param output receives the activations of the output layer
+     */
+    public void predictInto(double[] input, double[] output, Scratch scratch) {
+        double[][] ls = scratch.ls;
+        System.arraycopy(input, 0, ls[0], 0, layerSizes[0]);
+        for (int l = 1; l < layerSizes.length; l++) {
+            int nis = layerSizes[l - 1];
+            int nos = layerSizes[l];
+            int rank = ranks[l - 1];
+            double[] li = ls[l - 1];
+            double[] lo = ls[l];
+            double[] left = lefts[l - 1];
+            double[] b = bs[l - 1];
+            Activation act = activations[l];
+            if (rank > 0) {
+                double[] t = scratch.ts[l - 1];
+                double[] right = rights[l - 1];
+                for (int i = 0; i < rank; i++)
+                    t[i] = kernels.dot(right, i * nis, li, 0, nis);
+                for (int j = 0; j < nos; j++)
+                    lo[j] = act.apply(kernels.dot(left, j * rank, t, 0, rank) + b[j]);
+            } else {
+                for (int j = 0; j < nos; j++)
+                    lo[j] = act.apply(kernels.dot(left, j * nis, li, 0, nis) + b[j]);
+            }
+            if (act == Activation.SOFTMAX)
+                Activation.softmax(lo, 0, nos);
+        }
+        if (output != ls[ls.length - 1])
+            System.arraycopy(ls[ls.length - 1], 0, output, 0, output.length);
+    }
+
+    //-- fine-tuning -------------------------------------------------------------------
+
+    /**
+     * @return a copy of this model, trained like NeuralNet (same error function, derivatives averaged over all the samples,
+     * epochs * batches steps, no rate decay). Truncating the ranks loses accuracy, training the factors recovers part of it
+     */
+    public LowRankModel fineTune(List<InAndOut> samples, TrainConfig trainConfig, double rate) {
+        int layers = layerSizes.length;
+        Config config = new Config();
+        config.layer_sizes = layerSizes;
+        config.activations = Arrays.copyOfRange(activations, 1, layers);
+        config.vectorKernels = !(kernels instanceof ScalarKernels);
+        double[][] ls = copy(lefts);
+        double[][] rs = copy(rights);
+        LowRankModel model = new LowRankModel(config, ranks.clone(), ls, rs, copy(bs));
+        double[][] dls = zerosLike(ls);
+        double[][] drs = zerosLike(rs);
+        double[][] dbs = zerosLike(bs);
+        Scratch scratch = model.newScratch();
+        double[][] deltas = new double[layers][];
+        double[][] dts = new double[layers][];
+        for (int l = 0; l < layers; l++) {
+            deltas[l] = new double[layerSizes[l]];
+            dts[l] = new double[ranks[l]];
+        }
+        for (int step = 0; step < trainConfig.epochs * trainConfig.batches; step++) {
+            for (InAndOut sample : samples)
+                model.computeFwdBwd(sample, scratch, deltas, dts, dls, drs, dbs);
+            descend(ls, dls, rate / samples.size());
+            descend(rs, drs, rate / samples.size());
+            descend(model.bs, dbs, rate / samples.size());
+        }
+        return model;
+    }
+
+    /**
+     * accumulate the derivatives of cost vs the factors, weights and biases for one sample
+     * @param deltas receives the derivatives of cost vs z of each layer
+     * @param dts receives the derivatives of cost vs t of the factored layers
+     */
+    void computeFwdBwd(InAndOut sample, Scratch scratch, double[][] deltas, double[][] dts, double[][] dls, double[][] drs, double[][] dbs) {
+        double[][] ls = scratch.ls;
+        predictInto(sample.input, ls[ls.length - 1], scratch);
+        int last = layerSizes.length - 1;
+        // see NeuralNet.computeBwd()
+        boolean softmax = activations[last] == Activation.SOFTMAX;
+        for (int j = 0; j < layerSizes[last]; j++)
+            deltas[last][j] = softmax ? ls[last][j] - sample.expected[j] : NeuralNet.errorFunctiond(ls[last][j], sample.expected[j]);
+        for (int l = last; l > 0; l--) {
+            int nis = layerSizes[l - 1];
+            int nos = layerSizes[l];
+            int rank = ranks[l - 1];
+            double[] delta = deltas[l];
+            // z is not kept, the derivative is computed from the activation
+            Activation act = activations[l];
+            for (int j = 0; j < nos; j++) {
+                delta[j] *= act.derivativeOfOutput(ls[l][j]);
+                dbs[l - 1][j] += delta[j];
+            }
+            double[] dli = deltas[l - 1];
+            if (l > 1)
+                DataHelper.zeros(dli);
+            if (rank > 0) {
+                double[] t = scratch.ts[l - 1];
+                double[] dt = dts[l - 1];
+                DataHelper.zeros(dt);
+                for (int j = 0; j < nos; j++) {
+                    kernels.axpy(delta[j], t, 0, dls[l - 1], j * rank, rank);
+                    kernels.axpy(delta[j], lefts[l - 1], j * rank, dt, 0, rank);
+                }
+                for (int i = 0; i < rank; i++) {
+                    kernels.axpy(dt[i], ls[l - 1], 0, drs[l - 1], i * nis, nis);
+                    if (l > 1)
+                        kernels.axpy(dt[i], rights[l - 1], i * nis, dli, 0, nis);
+                }
+            } else {
+                for (int j = 0; j < nos; j++) {
+                    kernels.axpy(delta[j], ls[l - 1], 0, dls[l - 1], j * nis, nis);
+                    if (l > 1)
+                        kernels.axpy(delta[j], lefts[l - 1], j * nis, dli, 0, nis);
+                }
+            }
+        }
+    }
+
+    /**
+     * vs -= f * dvs, then dvs is reset
+     */
+    static void descend(double[][] vs, double[][] dvs, double f) {
+        for (int l = 0; l < vs.length; l++) {
+            if (vs[l] == null)
+                continue;
+            for (int i = 0; i < vs[l].length; i++)
+                vs[l][i] -= f * dvs[l][i];
+            DataHelper.zeros(dvs[l]);
+        }
+    }
+
+    static double[][] copy(double[][] vs) {
+        double[][] retVal = new double[vs.length][];
+        for (int i = 0; i < vs.length; i++)
+            retVal[i] = vs[i] == null ? null : vs[i].clone();
+        return retVal;
+    }
+
+    static double[][] zerosLike(double[][] vs) {
+        double[][] retVal = new double[vs.length][];
+        for (int i = 0; i < vs.length; i++)
+            retVal[i] = vs[i] == null ? null : new double[vs[i].length];
+        return retVal;
+    }
+
+    //-- save/load ---------------------------------------------------------------------
+
+    /**
+     * same format as CsvHelper.dumpNeuralNet(), preceded by the ranks, and with both factors for the factored layers
+     */
+    public void save(String path) throws IOException {
+        StringBuilder csv = new StringBuilder(CsvHelper.dump1d(ranks, "#ranks"));
+        for (int l = 0; l < layerSizes.length - 1; l++) {
+            csv.append("\n# layer " + l);
+            if (ranks[l] > 0) {
+                csv.append("\n" + CsvHelper.dump2d(lefts[l], ranks[l], "#left[" + l + "]"));
+                csv.append("\n" + CsvHelper.dump2d(rights[l], layerSizes[l], "#right[" + l + "]"));
+            } else {
+                csv.append("\n" + CsvHelper.dump2d(lefts[l], layerSizes[l], "#ws[" + l + "]"));
+            }
+            csv.append("\n" + CsvHelper.dump1d(bs[l], "#bs[" + l + "]"));
+        }
+        Files.write(Paths.get(path), csv.toString().getBytes());
+    }
+
+    public static LowRankModel load(Config config, String path) throws IOException {
+        String lines[] = Files.readString(Paths.get(path)).split("\n");
+        int[] sizes = config.layer_sizes;
+        int layers = sizes.length;
+        int[] ranks = new int[layers];
+        double[][] lefts = new double[layers][];
+        double[][] rights = new double[layers][];
+        double[][] bs = new double[layers][];
+        int y = CsvHelper.consume1d(lines, 0, ranks);
+        for (int l = 0; l < layers - 1; l++) {
+            if (ranks[l] > 0) {
+                lefts[l] = new double[sizes[l + 1] * ranks[l]];
+                rights[l] = new double[ranks[l] * sizes[l]];
+                y = CsvHelper.consume2d(lines, y, lefts[l], ranks[l]);
+                y = CsvHelper.consume2d(lines, y, rights[l], sizes[l]);
+            } else {
+                lefts[l] = new double[sizes[l + 1] * sizes[l]];
+                y = CsvHelper.consume2d(lines, y, lefts[l], sizes[l]);
+            }
+            bs[l] = new double[sizes[l + 1]];
+            y = CsvHelper.consume1d(lines, y, bs[l]);
+        }
+        return new LowRankModel(config, ranks, lefts, rights, bs);
+    }
+}
@@ -0,0 +1,73 @@
+package bruno.nn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trains a 784-512-10 network on MNIST (or on random clusters when the MNIST files are not found), then factors its first
+ * layer with increasing ranks (LowRankModel) and reports accuracy, multiply-adds and latency of each rank.
+ * Ranks losing more than 1% of the dense accuracy are fine-tuned, the smallest rank within 1% of the dense accuracy is saved.
+ * args: directory of the MNIST files, path of the factored model
+ */
+public class LowRankModelBenchmark {
+
+    public static void main(String... args) throws IOException {
+        String path = args.length > 1 ? args[1] : new File(System.getProperty("java.io.tmpdir"), "lowrank.csv").getPath();
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, 512, 10 };
+        config.rate = 0.01;
+        NeuralNet nn = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 10;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+
+        double[][] inputs = new double[test.size()][];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = test.get(i).input;
+        int runs = 20000;
+        InferenceModel dense = InferenceModel.of(nn);
+        double denseAccuracy = TrainingHelper.computeErrorAcc(test, dense)[1];
+        ParallelInferenceBenchmark.latencies(dense, inputs, runs);
+        double[] latDense = ParallelInferenceBenchmark.latencies(dense, inputs, runs);
+        long denseFlops = LowRankModel.flops(784, 512, 0) + LowRankModel.flops(512, 10, 0);
+        NeuralNet.log(String.format("dense:   accuracy:%.4f multiply-adds:%d p50:%.1fus", denseAccuracy, denseFlops, latDense[0]));
+
+        Svd[] svds = LowRankModel.decompose(nn, 128, 0);
+        LowRankModel best = null;
+        int bestRank = 0;
+        for (int r : new int[] { 4, 8, 16, 32, 64, 128 }) {
+            LowRankModel model = LowRankModel.of(nn, svds, r, 0);
+            double accuracy = TrainingHelper.computeErrorAcc(test, model)[1];
+            ParallelInferenceBenchmark.latencies(model, inputs, runs);
+            double[] lat = ParallelInferenceBenchmark.latencies(model, inputs, runs);
+            NeuralNet.log(String.format("rank %3d: accuracy:%.4f multiply-adds:%d p50:%.1fus weights error:%.4f", r, accuracy, model.flops(), lat[0],
+                    svds[0].relativeError(nn.ws[0], r)));
+            if (accuracy < denseAccuracy - 0.01) {
+                model = model.fineTune(train, trainConfig, config.rate);
+                accuracy = TrainingHelper.computeErrorAcc(test, model)[1];
+                NeuralNet.log(String.format("rank %3d: accuracy:%.4f after fine-tuning", r, accuracy));
+            }
+            if (best == null && accuracy >= denseAccuracy - 0.01) {
+                best = model;
+                bestRank = r;
+            }
+        }
+        if (best != null) {
+            best.save(path);
+            LowRankModel loaded = LowRankModel.load(config, path);
+            NeuralNet.log("saved rank " + bestRank + " to " + path + ", accuracy after load:" + TrainingHelper.computeErrorAcc(test, loaded)[1]);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package bruno.nn;
+
+/**
+ * Cache blocked matrix-matrix kernels used by the batched forward/backward pass.
+ *
+ * All matrices are row-major and stored in a flat array starting at a given offset,
+ * the length of a row is always the number of columns (no padding).
+ *
+ * Kernels accumulate into the output matrix (C += ...) so that the caller can initialize it, e.g. with the biases.
+ *
+ * @see NeuralNet#computeFwdBwdBatch(double[][], double[][], int, int)
+ */
+public class MatrixHelper {
+
+    /**
+     * number of columns processed per block, so that the rows of a block stay in L1/L2
+     */
+    static final int KB = 256;
+    /**
+     * number of rows of the right hand matrix processed per block
+     */
+    static final int JB = 64;
+    /**
+     * number of rows of the left hand matrix (i.e. samples) processed per block
+     */
+    static final int IB = 32;
+
+    /**
+     * C[n x m] += A[n x k] * B[m x k]^T
+     *
+     * this is the forward pass: A are the activations of the previous layer (one row per sample), B the weights (one row per neuron)
+     */
+    public static void multiplyABt(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int n, int m, int k) {
+        for (int i0 = 0; i0 < n; i0 += IB) {
+            int i1 = Math.min(n, i0 + IB);
+            for (int k0 = 0; k0 < k; k0 += KB) {
+                int k1 = Math.min(k, k0 + KB);
+                for (int j0 = 0; j0 < m; j0 += JB) {
+                    int j1 = Math.min(m, j0 + JB);
+                    multiplyABtBlock(a, aOff, b, bOff, c, cOff, m, k, i0, i1, j0, j1, k0, k1);
+                }
+            }
+        }
+    }
+
+    /**
+     * C[i0..i1[ x [j0..j1[ += A[i0..i1[ x [k0..k1[ * B[j0..j1[ x [k0..k1[^T
+     */
+    private static void multiplyABtBlock(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int m, int k,
+            int i0, int i1, int j0, int j1, int k0, int k1) {
+        int i = i0;
+        // 4 samples at a time, so that each weight is loaded once for 4 multiply-adds
+        for (; i + 4 <= i1; i += 4) {
+            int a0 = aOff + i * k, a1 = a0 + k, a2 = a1 + k, a3 = a2 + k;
+            int c0 = cOff + i * m, c1 = c0 + m, c2 = c1 + m, c3 = c2 + m;
+            for (int j = j0; j < j1; j++) {
+                int bo = bOff + j * k;
+                double z0 = 0, z1 = 0, z2 = 0, z3 = 0;
+                for (int kk = k0; kk < k1; kk++) {
+                    double w = b[bo + kk];
+                    z0 += a[a0 + kk] * w;
+                    z1 += a[a1 + kk] * w;
+                    z2 += a[a2 + kk] * w;
+                    z3 += a[a3 + kk] * w;
+                }
+                c[c0 + j] += z0;
+                c[c1 + j] += z1;
+                c[c2 + j] += z2;
+                c[c3 + j] += z3;
+            }
+        }
+        // remaining samples
+        for (; i < i1; i++) {
+            int a0 = aOff + i * k;
+            int c0 = cOff + i * m;
+            for (int j = j0; j < j1; j++) {
+                int bo = bOff + j * k;
+                double z0 = 0;
+                for (int kk = k0; kk < k1; kk++)
+                    z0 += a[a0 + kk] * b[bo + kk];
+                c[c0 + j] += z0;
+            }
+        }
+    }
+
+    /**
+     * C[m x k] += D[n x m]^T * A[n x k]
+     *
+     * this is the weight gradient: D are the deltas of the layer (one row per sample), A the activations of the previous layer
+     */
+    public static void multiplyAtB(double[] d, int dOff, double[] a, int aOff, double[] c, int cOff, int n, int m, int k) {
+        for (int i0 = 0; i0 < n; i0 += IB) {
+            int i1 = Math.min(n, i0 + IB);
+            for (int k0 = 0; k0 < k; k0 += KB) {
+                int k1 = Math.min(k, k0 + KB);
+                for (int j = 0; j < m; j++)
+                    multiplyAtBRow(d, dOff, a, aOff, c, cOff, m, k, i0, i1, j, k0, k1);
+            }
+        }
+    }
+
+    /**
+     * C[j] x [k0..k1[ += D[i0..i1[ x [j]^T * A[i0..i1[ x [k0..k1[
+     */
+    private static void multiplyAtBRow(double[] d, int dOff, double[] a, int aOff, double[] c, int cOff, int m, int k,
+            int i0, int i1, int j, int k0, int k1) {
+        int co = cOff + j * k;
+        int i = i0;
+        // 4 samples at a time, so that each gradient is loaded/stored once for 4 multiply-adds
+        for (; i + 4 <= i1; i += 4) {
+            double d0 = d[dOff + i * m + j];
+            double d1 = d[dOff + (i + 1) * m + j];
+            double d2 = d[dOff + (i + 2) * m + j];
+            double d3 = d[dOff + (i + 3) * m + j];
+            int a0 = aOff + i * k, a1 = a0 + k, a2 = a1 + k, a3 = a2 + k;
+            for (int kk = k0; kk < k1; kk++)
+                c[co + kk] += d0 * a[a0 + kk] + d1 * a[a1 + kk] + d2 * a[a2 + kk] + d3 * a[a3 + kk];
+        }
+        for (; i < i1; i++) {
+            double d0 = d[dOff + i * m + j];
+            int a0 = aOff + i * k;
+            for (int kk = k0; kk < k1; kk++)
+                c[co + kk] += d0 * a[a0 + kk];
+        }
+    }
+
+    /**
+     * C[n x k] += D[n x m] * B[m x k]
+     *
+     * this is the back propagation to the previous layer: D are the deltas of the layer (one row per sample), B the weights
+     */
+    public static void multiplyAB(double[] d, int dOff, double[] b, int bOff, double[] c, int cOff, int n, int m, int k) {
+        for (int k0 = 0; k0 < k; k0 += KB) {
+            int k1 = Math.min(k, k0 + KB);
+            for (int i = 0; i < n; i++) {
+                int co = cOff + i * k;
+                int dio = dOff + i * m;
+                int j = 0;
+                // 4 neurons at a time, so that each output is loaded/stored once for 4 multiply-adds
+                for (; j + 4 <= m; j += 4) {
+                    double d0 = d[dio + j], d1 = d[dio + j + 1], d2 = d[dio + j + 2], d3 = d[dio + j + 3];
+                    int b0 = bOff + j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                    for (int kk = k0; kk < k1; kk++)
+                        c[co + kk] += d0 * b[b0 + kk] + d1 * b[b1 + kk] + d2 * b[b2 + kk] + d3 * b[b3 + kk];
+                }
+                for (; j < m; j++) {
+                    double d0 = d[dio + j];
+                    int b0 = bOff + j * k;
+                    for (int kk = k0; kk < k1; kk++)
+                        c[co + kk] += d0 * b[b0 + kk];
+                }
+            }
+        }
+    }
+
+    /**
+     * sum the rows of D[n x m] into c[m]
+     */
+    public static void sumRows(double[] d, int dOff, double[] c, int cOff, int n, int m) {
+        for (int i = 0; i < n; i++) {
+            int dio = dOff + i * m;
+            for (int j = 0; j < m; j++)
+                c[cOff + j] += d[dio + j];
+        }
+    }
+
+    /**
+     * copy v[m] into every row of C[n x m]
+     */
+    public static void broadcastRows(double[] v, int vOff, double[] c, int cOff, int n, int m) {
+        for (int i = 0; i < n; i++)
+            System.arraycopy(v, vOff, c, cOff + i * m, m);
+    }
+}
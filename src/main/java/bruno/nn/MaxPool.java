@@ -0,0 +1,81 @@
+package bruno.nn;
+
+import java.util.Arrays;
+
+/**
+ * Max pooling of an image (channel last @see ConvLayer) over size x size windows with a stride of size, the last rows and
+ * columns are dropped when size does not divide the image.
+ * The index of the max of each window is kept, the backward pass routes the derivative of each output to it.
+ */
+public class MaxPool {
+
+    final int height;
+    final int width;
+    final int channels;
+    final int size;
+    final int outHeight;
+    final int outWidth;
+
+    // buffers of the last sample
+    final double[] out;
+    /**
+     * index in the input of the max of each output
+     */
+    final int[] argmax;
+
+    public MaxPool(int height, int width, int channels, int size) {
+        if (size > height || size > width)
+            throw new IllegalArgumentException("pool " + size + " is larger than the image " + height + "x" + width);
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.size = size;
+        this.outHeight = height / size;
+        this.outWidth = width / size;
+        this.out = new double[outHeight * outWidth * channels];
+        this.argmax = new int[out.length];
+    }
+
+    public int outputs() {
+        return out.length;
+    }
+
+    /**
+     * @return the pooled image, valid until the next call
+     */
+    public double[] forward(double[] in) {
+        int o = 0;
+        for (int oy = 0; oy < outHeight; oy++)
+            for (int ox = 0; ox < outWidth; ox++) {
+                int first = (oy * size * width + ox * size) * channels;
+                for (int c = 0; c < channels; c++) {
+                    int best = first + c;
+                    for (int y = 0; y < size; y++)
+                        for (int x = 0; x < size; x++) {
+                            int i = first + (y * width + x) * channels + c;
+                            if (in[i] > in[best])
+                                best = i;
+                        }
+                    out[o] = in[best];
+                    argmax[o++] = best;
+                }
+            }
+        return out;
+    }
+
+    /**
+     * backward pass of the last forward()
+     * @param dOut derivative of the cost vs the output
+     * @param dIn set to the derivative of the cost vs the input
+     */
+    public void backward(double[] dOut, double[] dIn) {
+        Arrays.fill(dIn, 0);
+        for (int o = 0; o < out.length; o++)
+            dIn[argmax[o]] += dOut[o];
+    }
+
+    @Override
+    public String toString() {
+        return "max pool " + size + "x" + size + " -> " + outHeight + "x" + outWidth + "x" + channels;
+    }
+}
@@ -0,0 +1,375 @@
+package bruno.nn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Works out the size and lifetime of every buffer of a NeuralNet from Config.layer_sizes and the batch size.
+ *
+ * Buffers whose lifetime is known (the batch buffers, which grow with the batch size) are placed in a single arena:
+ * two buffers which are never live at the same time share the same memory. The other buffers (weights, derivatives,
+ * single sample activations) live as long as the network, they are only accounted for.
+ *
+ * Lifetimes are found by replaying the steps of NeuralNet.computeFwdBwdBatch(): the fwd pass of each layer, the derivative
+ * of the output, then the derivatives of each layer, preceded by the recomputation of the layers which were not kept
+ * when Config.checkpointEvery is set.
+ *
+ * @see Config#memoryBudget
+ */
+public class MemoryPlanner {
+
+    enum Category {
+        WEIGHTS, GRADIENTS, ACTIVATIONS, OPTIMIZER
+    }
+
+    static class Buffer {
+        final String name;
+        final Category category;
+        /**
+         * the layer the buffer belongs to, the weights used to compute l[i] belong to layer i
+         */
+        final int layer;
+        /**
+         * number of values, the weights of a layer may not fit in an int
+         */
+        final long size;
+        /**
+         * first and last steps where the buffer is live, -1 when the buffer is not in the arena
+         */
+        int first;
+        int last;
+        /**
+         * offset in the arena, set by plan()
+         */
+        int offset = -1;
+
+        Buffer(String name, Category category, int layer, long size, int first, int last) {
+            this.name = name;
+            this.category = category;
+            this.layer = layer;
+            this.size = size;
+            this.first = first;
+            this.last = last;
+        }
+
+        boolean inArena() {
+            return first >= 0;
+        }
+
+        /**
+         * the buffer is used at step
+         */
+        void touch(int step) {
+            if (first < 0)
+                first = step;
+            last = Math.max(last, step);
+        }
+
+        boolean overlaps(Buffer other) {
+            return first <= other.last && other.first <= last;
+        }
+
+        @Override
+        public String toString() {
+            return name + "[" + size + "]" + (inArena() ? "@" + offset + " steps " + first + ".." + last : "");
+        }
+    }
+
+    final int layers;
+    final int batch;
+    /**
+     * size of a value in bytes
+     */
+    final int valueBytes;
+    final List<Buffer> buffers = new ArrayList<>();
+    /**
+     * number of values of the arena, set by plan()
+     */
+    int arenaSize;
+
+    MemoryPlanner(int layers, int batch, int valueBytes) {
+        this.layers = layers;
+        this.batch = batch;
+        this.valueBytes = valueBytes;
+    }
+
+    /**
+     * a buffer which lives as long as the network
+     */
+    Buffer add(String name, Category category, int layer, long size) {
+        return add(name, category, layer, size, -1, -1);
+    }
+
+    /**
+     * a buffer of the arena, live during steps [first;last]
+     */
+    Buffer add(String name, Category category, int layer, long size, int first, int last) {
+        Buffer buffer = new Buffer(name, category, layer, size, first, last);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    Buffer get(String name) {
+        for (Buffer buffer : buffers)
+            if (buffer.name.equals(name))
+                return buffer;
+        return null;
+    }
+
+    /**
+     * place the arena buffers, largest first, at the lowest offset which does not collide with a placed buffer live at the same time
+     * @return the size of the arena
+     */
+    int plan() {
+        List<Buffer> toPlace = new ArrayList<>();
+        for (Buffer buffer : buffers)
+            if (buffer.inArena())
+                toPlace.add(buffer);
+        toPlace.sort(Comparator.comparingLong((Buffer b) -> b.size).reversed());
+
+        List<Buffer> placed = new ArrayList<>();
+        arenaSize = 0;
+        for (Buffer buffer : toPlace) {
+            List<Buffer> live = new ArrayList<>();
+            for (Buffer other : placed)
+                if (other.overlaps(buffer))
+                    live.add(other);
+            live.sort(Comparator.comparingInt(b -> b.offset));
+            // the arena is a double[], its buffers fit in an int
+            int size = (int) buffer.size;
+            int offset = 0;
+            for (Buffer other : live) {
+                if (offset + size <= other.offset)
+                    break;
+                offset = Math.max(offset, other.offset + (int) other.size);
+            }
+            buffer.offset = offset;
+            placed.add(buffer);
+            arenaSize = Math.max(arenaSize, offset + size);
+        }
+        return arenaSize;
+    }
+
+    /**
+     * @return the bytes of the buffers of a category (null for all) and layer (-1 for all), without reuse
+     */
+    long bytes(Category category, int layer) {
+        long retVal = 0;
+        for (Buffer buffer : buffers)
+            if ((category == null || buffer.category == category) && (layer < 0 || buffer.layer == layer))
+                retVal += buffer.size * valueBytes;
+        return retVal;
+    }
+
+    /**
+     * @return the bytes actually allocated: the buffers outside the arena, plus the arena
+     */
+    long totalBytes() {
+        long retVal = (long) arenaSize * valueBytes;
+        for (Buffer buffer : buffers)
+            if (!buffer.inArena())
+                retVal += buffer.size * valueBytes;
+        return retVal;
+    }
+
+    /**
+     * fail fast, before anything is allocated
+     * @param budget in bytes, 0 means no limit
+     */
+    void checkBudget(long budget) {
+        if (budget > 0 && totalBytes() > budget)
+            throw new IllegalStateException("memory budget exceeded: " + totalBytes() + " bytes needed, budget is " + budget + " bytes\n" + report());
+    }
+
+    /**
+     * bytes per layer and per category, and the arena with and without reuse
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-8s %12s %12s %12s %12s%n", "layer", "weights", "gradients", "activations", "optimizer"));
+        for (int l = 0; l < layers; l++)
+            sb.append(String.format("%-8d %12d %12d %12d %12d%n", l, bytes(Category.WEIGHTS, l), bytes(Category.GRADIENTS, l), bytes(Category.ACTIVATIONS, l),
+                    bytes(Category.OPTIMIZER, l)));
+        sb.append(String.format("%-8s %12d %12d %12d %12d%n", "total", bytes(Category.WEIGHTS, -1), bytes(Category.GRADIENTS, -1),
+                bytes(Category.ACTIVATIONS, -1), bytes(Category.OPTIMIZER, -1)));
+        long arenaBuffers = 0;
+        for (Buffer buffer : buffers)
+            if (buffer.inArena())
+                arenaBuffers += buffer.size * valueBytes;
+        sb.append("batch " + batch + ": arena " + (long) arenaSize * valueBytes + " bytes for " + arenaBuffers + " bytes of buffers\n");
+        sb.append("allocated " + totalBytes() + " bytes");
+        return sb.toString();
+    }
+
+    /**
+     * plan the buffers of a NeuralNet
+     * @param batch capacity of the batch buffers, 0 if computeFwdBwdBatch() is not used
+     */
+    static MemoryPlanner of(Config config, int batch) {
+        return of(config, batch, config.checkpointEvery);
+    }
+
+    /**
+     * @param checkpointEvery overrides Config.checkpointEvery
+     */
+    static MemoryPlanner of(Config config, int batch, int checkpointEvery) {
+        return of(config, batch, checkpointEvery, Double.BYTES);
+    }
+
+    /**
+     * @param valueBytes Float.BYTES for a FloatNeuralNet
+     */
+    static MemoryPlanner of(Config config, int batch, int checkpointEvery, int valueBytes) {
+        int[] sizes = config.layer_sizes;
+        int layers = sizes.length;
+        MemoryPlanner retVal = new MemoryPlanner(layers, batch, valueBytes);
+        // the sizes are in values, a long of a sign mask takes one or two of them
+        int maskValues = Long.BYTES / valueBytes;
+        for (int l = 0; l < layers; l++) {
+            retVal.add("ls" + l, Category.ACTIVATIONS, l, sizes[l]);
+            retVal.add((config.signMasks ? "masks" : "zs") + l, Category.ACTIVATIONS, l, config.signMasks ? masksSize(sizes[l]) * maskValues : sizes[l]);
+            if (l == 0)
+                continue;
+            retVal.add("ws" + l, Category.WEIGHTS, l, (long) sizes[l] * sizes[l - 1]);
+            retVal.add("bs" + l, Category.WEIGHTS, l, sizes[l]);
+            retVal.add("dws" + l, Category.GRADIENTS, l, (long) sizes[l] * sizes[l - 1]);
+            retVal.add("dbs" + l, Category.GRADIENTS, l, sizes[l]);
+            retVal.add("dls" + l, Category.GRADIENTS, l, sizes[l]);
+            // velocity or moments @see Optimizer
+            for (String state : config.optimizer.hasV() ? new String[] { "m", "v" } : config.optimizer.hasM() ? new String[] { "m" } : new String[0]) {
+                retVal.add(state + "ws" + l, Category.OPTIMIZER, l, (long) sizes[l] * sizes[l - 1]);
+                retVal.add(state + "bs" + l, Category.OPTIMIZER, l, sizes[l]);
+            }
+        }
+        if (batch > 0) {
+            for (int l = 1; l < layers; l++)
+                if (config.signMasks)
+                    retVal.add("bmasks" + l, Category.ACTIVATIONS, l, masksSize(batch * sizes[l]) * maskValues);
+            retVal.replayBatch(config, batch, checkpointEvery);
+        }
+        retVal.plan();
+        return retVal;
+    }
+
+    /**
+     * @return true when the batch activations of layer l are kept by the fwd pass, the input and the output are always kept
+     */
+    static boolean keepsLayer(int l, int layers, int checkpointEvery) {
+        return checkpointEvery <= 1 || l % checkpointEvery == 0 || l == layers - 1;
+    }
+
+    /**
+     * @return the kept layer under l
+     */
+    static int previousKept(int l, int layers, int checkpointEvery) {
+        int retVal = l - 1;
+        while (!keepsLayer(retVal, layers, checkpointEvery))
+            retVal--;
+        return retVal;
+    }
+
+    /**
+     * the batch buffer name of layer l, created when first used
+     */
+    Buffer batchBuffer(String name, Category category, int l, int size) {
+        Buffer retVal = get(name + l);
+        if (retVal == null)
+            retVal = add(name + l, category, l, size, -1, -1);
+        return retVal;
+    }
+
+    /**
+     * find the lifetimes of the batch buffers, by following the same steps as NeuralNet.computeFwdBwdBatch()
+     */
+    void replayBatch(Config config, int batch, int checkpointEvery) {
+        int[] sizes = config.layer_sizes;
+        int last = layers - 1;
+        Buffer[] bls = new Buffer[layers];
+        Buffer[] bzs = new Buffer[layers];
+        Buffer[] rbls = new Buffer[layers];
+        Buffer[] rbzs = new Buffer[layers];
+        Buffer[] bdls = new Buffer[layers];
+        for (int l = 0; l < layers; l++) {
+            boolean kept = keepsLayer(l, layers, checkpointEvery);
+            bls[l] = batchBuffer("bls", Category.ACTIVATIONS, l, batch * sizes[l]);
+            rbls[l] = kept ? bls[l] : batchBuffer("rbls", Category.ACTIVATIONS, l, batch * sizes[l]);
+            if (l == 0)
+                continue;
+            bdls[l] = batchBuffer("bdls", Category.GRADIENTS, l, batch * sizes[l]);
+            if (!config.signMasks) {
+                // the fwd pass does not need z for the layers which are not kept
+                bzs[l] = kept ? batchBuffer("bzs", Category.ACTIVATIONS, l, batch * sizes[l]) : null;
+                rbzs[l] = kept ? bzs[l] : batchBuffer("rbzs", Category.ACTIVATIONS, l, batch * sizes[l]);
+            }
+        }
+
+        int step = 0;
+        bls[0].touch(step);
+        for (int l = 1; l < layers; l++) {
+            step++;
+            bls[l - 1].touch(step);
+            bls[l].touch(step);
+            if (bzs[l] != null)
+                bzs[l].touch(step);
+        }
+        step++;
+        bls[last].touch(step);
+        bdls[last].touch(step);
+        for (int l = last; l > 0; l--) {
+            if (keepsLayer(l, layers, checkpointEvery)) {
+                for (int r = previousKept(l, layers, checkpointEvery) + 1; r < l; r++) {
+                    step++;
+                    rbls[r - 1].touch(step);
+                    rbls[r].touch(step);
+                    if (rbzs[r] != null)
+                        rbzs[r].touch(step);
+                }
+            }
+            step++;
+            bdls[l].touch(step);
+            if (rbzs[l] != null)
+                rbzs[l].touch(step);
+            rbls[l - 1].touch(step);
+            if (l > 1)
+                bdls[l - 1].touch(step);
+        }
+    }
+
+    /**
+     * multiply-adds of computeFwdBwdBatch() for a batch, without and with the recomputation of the layers which are not kept
+     */
+    static long[] batchFlops(Config config, int batch, int checkpointEvery) {
+        int[] sizes = config.layer_sizes;
+        long flops = 0;
+        long extra = 0;
+        for (int l = 1; l < sizes.length; l++) {
+            long layer = (long) batch * sizes[l] * sizes[l - 1];
+            // fwd, derivatives of the weights, derivatives of the previous layer
+            flops += layer * (l > 1 ? 3 : 2);
+            if (!keepsLayer(l, sizes.length, checkpointEvery))
+                extra += layer;
+        }
+        return new long[] { flops, extra };
+    }
+
+    /**
+     * memory saved by Config.checkpointEvery vs the extra multiply-adds
+     */
+    static String checkpointReport(Config config, int batch) {
+        MemoryPlanner all = of(config, batch, 0);
+        MemoryPlanner checkpointed = of(config, batch, config.checkpointEvery);
+        long allArena = (long) all.arenaSize * all.valueBytes;
+        long arena = (long) checkpointed.arenaSize * checkpointed.valueBytes;
+        long[] flops = batchFlops(config, batch, config.checkpointEvery);
+        return String.format("checkpointEvery:%d batch:%d batch buffers:%d bytes instead of %d (-%.1f%%), total:%d bytes instead of %d, multiply-adds:%d + %d recomputed (+%.1f%%)",
+                config.checkpointEvery, batch, arena, allArena, 100.0 * (allArena - arena) / allArena, checkpointed.totalBytes(), all.totalBytes(),
+                flops[0], flops[1], 100.0 * flops[1] / flops[0]);
+    }
+
+    static int masksSize(int n) {
+        return (n + 63) >>> 6;
+    }
+}
@@ -0,0 +1,32 @@
+package bruno.nn;
+
+import java.util.Arrays;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Prints the MemoryPlanner report of a few networks, with and without sign masks, and the memory saved by gradient
+ * checkpointing of a deep network
+ */
+public class MemoryPlannerBenchmark {
+
+    public static void main(String... args) {
+        for (int[] layerSizes : new int[][] { { 4, 12, 3 }, { 784, 512, 10 }, { 784, 1024, 1024, 1024, 10 } }) {
+            for (boolean signMasks : new boolean[] { false, true }) {
+                Config config = new Config();
+                config.layer_sizes = layerSizes;
+                config.signMasks = signMasks;
+                NeuralNet.log(Arrays.toString(layerSizes) + " signMasks:" + signMasks + "\n" + MemoryPlanner.of(config, 64).report());
+            }
+        }
+        int[] deep = new int[18];
+        Arrays.fill(deep, 1024);
+        deep[deep.length - 1] = 10;
+        for (int checkpointEvery : new int[] { 0, 2, 4, 8 }) {
+            Config config = new Config();
+            config.layer_sizes = deep;
+            config.checkpointEvery = checkpointEvery;
+            NeuralNet.log(MemoryPlanner.checkpointReport(config, 256));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Epochs and time to 95% test accuracy of a 784-128-10 softmax network, updated once per epoch from all the training samples,
+ * or once per mini-batch (TrainConfig.miniBatch), with and without the linear scaling of the learning rate.
+ *
+ * args: directory of the MNIST files
+ */
+public class MiniBatchBenchmark {
+
+    /**
+     * @return epochs, training ms and samples per second until the test accuracy reaches SoftmaxBenchmark.TARGET (or maxEpochs),
+     * and the last accuracy
+     */
+    static double[] timeToTarget(int miniBatch, int rateReferenceBatch, List<InAndOut> train, List<InAndOut> test, int maxEpochs) {
+        Config config = SoftmaxBenchmark.config(Activation.SOFTMAX);
+        NeuralNet nn = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 1;
+        trainConfig.batches = 1;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        trainConfig.miniBatch = miniBatch;
+        trainConfig.rateReferenceBatch = rateReferenceBatch;
+        long nanos = 0;
+        double accuracy = 0;
+        int epoch = 0;
+        while (epoch < maxEpochs && accuracy < SoftmaxBenchmark.TARGET) {
+            trainConfig.seed = epoch++;
+            long start = System.nanoTime();
+            TrainingHelper.train(train, List.of(), nn, trainConfig);
+            nanos += System.nanoTime() - start;
+            accuracy = TrainingHelper.computeErrorAcc(test, nn)[1];
+        }
+        return new double[] { epoch, nanos / 1e6, epoch * train.size() * 1e9 / nanos, accuracy };
+    }
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        // { miniBatch, rateReferenceBatch }
+        int[][] runs = { { 0, 0 }, { 256, 0 }, { 32, 0 }, { 256, 32 } };
+        // warm up
+        timeToTarget(32, 0, train.subList(0, 500), test, 1);
+        double[][] results = new double[runs.length][];
+        for (int r = 0; r < runs.length; r++)
+            results[r] = timeToTarget(runs[r][0], runs[r][1], train, test, 50);
+        for (int r = 0; r < runs.length; r++)
+            NeuralNet.log(String.format("mini-batch:%-5s rate scaled from %-5s %3.0f epochs %7.0fms %6.0f samples/s accuracy:%.4f",
+                    runs[r][0] == 0 ? "all" : runs[r][0], runs[r][1] == 0 ? "-" : runs[r][1], results[r][0], results[r][1], results[r][2], results[r][3]));
+    }
+}
@@ -1,5 +1,6 @@
 package bruno.nn;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,6 +11,46 @@ import bruno.nn.TrainingHelper.TrainConfig;
 
 public class Mnist {
 
+    /**
+     * directory of the MNIST files of the benchmarks, when it is not given as their first argument
+     */
+    static final String DEFAULT_DIR = "data";
+
+    /**
+     * training and test samples of a benchmark
+     */
+    static class Samples {
+        final List<InAndOut> train;
+        final List<InAndOut> test;
+
+        Samples(List<InAndOut> train, List<InAndOut> test) {
+            this.train = train;
+            this.test = test;
+        }
+    }
+
+    /**
+     * the samples of most benchmarks: 10000 training and 2000 test samples @see #samples(String, int, int)
+     * @param args args of the benchmark, the first one is the directory of the MNIST files
+     */
+    static Samples benchmarkSamples(String... args) {
+        return samples(args.length > 0 ? args[0] : DEFAULT_DIR, 10000, 2000);
+    }
+
+    /**
+     * the first trains training samples and tests test samples of MNIST, read from dir.
+     * When the MNIST files are not there, random clusters of the same shape are used instead @see DataHelper#clusters
+     */
+    static Samples samples(String dir, int trains, int tests) {
+        if (!new File(dir, "train-images-idx3-ubyte").exists()) {
+            NeuralNet.log("MNIST not found in " + dir + ", using random clusters");
+            return new Samples(DataHelper.clusters(784, 10, Math.min(trains, 5000), 1), DataHelper.clusters(784, 10, Math.min(tests, 1000), 2));
+        }
+        List<InAndOut> train = readMnistToData(dir + "/train-images-idx3-ubyte", dir + "/train-labels-idx1-ubyte");
+        List<InAndOut> test = readMnistToData(dir + "/t10k-images-idx3-ubyte", dir + "/t10k-labels-idx1-ubyte");
+        return new Samples(train.subList(0, Math.min(trains, train.size())), test.subList(0, Math.min(tests, test.size())));
+    }
+
     public static List<InAndOut> readMnistToData(String images, String labels) {
         List<InAndOut> mnistTrain = new ArrayList<InAndOut>();
         ReadMnist rTrain = new ReadMnist(images, labels);
@@ -34,7 +75,10 @@ public class Mnist {
         config = new Config();
         config.layer_sizes = new int[] { 28 * 28, 512, 10 };
         config.rate = 0.1;
-        NeuralNet nn = new NeuralNet(config);
+        // single precision with the vector kernels: about 3x faster per epoch than double with scalar loops
+        config.float32 = true;
+        config.vectorKernels = true;
+        Network nn = NeuralNet.create(config);
 
 
         CsvHelper.consumeFile(nn, "/tmp/mnist-2.csv");
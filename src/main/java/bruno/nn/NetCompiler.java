@@ -0,0 +1,229 @@
+package bruno.nn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Generates the fwd and fwd+bwd passes of a given Config as Java source, with the layer sizes and the slope of the
+ * activation function as constants, and small layers fully unrolled. The source is compiled in memory (javax.tools, so a JDK
+ * is needed at runtime) and defined as a hidden class.
+ *
+ * The generated code does the same operations in the same order as NeuralNet with scalar kernels, so the results are
+ * bit-identical.
+ *
+ * @see NeuralNet#specialize()
+ */
+public class NetCompiler {
+
+    /**
+     * layers with at most this number of weights are unrolled
+     */
+    static final int MAX_UNROLLED = 64;
+
+    /**
+     * implemented by the generated classes, the arrays are the ones of NeuralNet
+     */
+    interface Specialized {
+        /**
+         * ls[0] must contain the inputs
+         */
+        void computeFwd(double[][] ws, double[][] bs, double[][] ls, double[][] zs);
+
+        /**
+         * ls[0] must contain the inputs, the derivatives are accumulated in dws and dbs
+         */
+        void computeFwdBwd(double[][] ws, double[][] bs, double[][] ls, double[][] zs, double[][] dls, double[][] dws, double[][] dbs, double[] expecteds);
+    }
+
+    /**
+     * number of compiled classes, for unique names
+     */
+    static int count;
+
+    /**
+     * compile a Specialized for the layer sizes of config
+     */
+    public static Specialized compile(Config config) {
+        String simpleName;
+        synchronized (NetCompiler.class) {
+            simpleName = "Specialized" + (count++);
+        }
+        String source = generate(config, simpleName);
+        byte[] bytes = compile(NetCompiler.class.getPackageName() + "." + simpleName, source);
+        try {
+            Class<?> hidden = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            return (Specialized) hidden.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //-- source generation -------------------------------------------------------------
+
+    static String generate(Config config, String simpleName) {
+        int[] sizes = config.layer_sizes;
+        int layers = sizes.length;
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(NetCompiler.class.getPackageName()).append(";\n\n");
+        sb.append("public final class ").append(simpleName).append(" implements NetCompiler.Specialized {\n\n");
+
+        sb.append("    public void computeFwd(double[][] ws, double[][] bs, double[][] ls, double[][] zs) {\n");
+        for (int l = 1; l < layers; l++)
+            generateLayer(sb, config, l);
+        sb.append("    }\n\n");
+
+        sb.append("    public void computeFwdBwd(double[][] ws, double[][] bs, double[][] ls, double[][] zs, double[][] dls, double[][] dws, double[][] dbs, double[] expecteds) {\n");
+        sb.append("        computeFwd(ws, bs, ls, zs);\n");
+        for (int l = 1; l < layers - 1; l++)
+            sb.append("        java.util.Arrays.fill(dls[").append(l).append("], 0);\n");
+        int last = layers - 1;
+        // errorFunctiond(), added to the reset dls
+        sb.append("        {\n");
+        sb.append("            double[] d = dls[").append(last).append("];\n");
+        sb.append("            double[] o = ls[").append(last).append("];\n");
+        sb.append("            for (int j = 0; j < ").append(sizes[last]).append("; j++)\n");
+        sb.append("                d[j] = 0.0 + 2 * (o[j] - expecteds[j]);\n");
+        sb.append("        }\n");
+        for (int l = last; l > 0; l--)
+            generateLayerBwd(sb, config, l);
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    static String literal(double v) {
+        return Double.toString(v);
+    }
+
+    /**
+     * same as NeuralNet.computeLayer() with scalar kernels
+     */
+    static void generateLayer(StringBuilder sb, Config config, int l) {
+        int nis = config.layer_sizes[l - 1];
+        int nos = config.layer_sizes[l];
+        String neg = literal(config.reluNegF);
+        sb.append("        {\n");
+        sb.append("            double[] li = ls[").append(l - 1).append("];\n");
+        sb.append("            double[] w = ws[").append(l - 1).append("];\n");
+        sb.append("            double[] b = bs[").append(l - 1).append("];\n");
+        sb.append("            double[] lo = ls[").append(l).append("];\n");
+        sb.append("            double[] zo = zs[").append(l).append("];\n");
+        if (nis * nos <= MAX_UNROLLED) {
+            for (int j = 0; j < nos; j++) {
+                sb.append("            {\n");
+                sb.append("                double z = 0.0");
+                for (int k = 0; k < nis; k++)
+                    sb.append(" + li[").append(k).append("] * w[").append(j * nis + k).append("]");
+                sb.append(";\n");
+                sb.append("                z += b[").append(j).append("];\n");
+                sb.append("                lo[").append(j).append("] = z < 0 ? z * ").append(neg).append(" : z;\n");
+                sb.append("                zo[").append(j).append("] = z;\n");
+                sb.append("            }\n");
+            }
+        } else {
+            sb.append("            for (int j = 0; j < ").append(nos).append("; j++) {\n");
+            sb.append("                int wo = j * ").append(nis).append(";\n");
+            sb.append("                double z = 0;\n");
+            sb.append("                for (int k = 0; k < ").append(nis).append("; k++)\n");
+            sb.append("                    z += li[k] * w[wo + k];\n");
+            sb.append("                z += b[j];\n");
+            sb.append("                lo[j] = z < 0 ? z * ").append(neg).append(" : z;\n");
+            sb.append("                zo[j] = z;\n");
+            sb.append("            }\n");
+        }
+        sb.append("        }\n");
+    }
+
+    /**
+     * same as the backward loop of NeuralNet.computeFwdBwd() for layer l, with scalar kernels
+     */
+    static void generateLayerBwd(StringBuilder sb, Config config, int l) {
+        int nis = config.layer_sizes[l - 1];
+        int nos = config.layer_sizes[l];
+        String neg = literal(config.reluNegF);
+        sb.append("        {\n");
+        sb.append("            double[] d = dls[").append(l).append("];\n");
+        sb.append("            double[] z = zs[").append(l).append("];\n");
+        sb.append("            double[] lp = ls[").append(l - 1).append("];\n");
+        sb.append("            double[] dw = dws[").append(l - 1).append("];\n");
+        sb.append("            double[] db = dbs[").append(l - 1).append("];\n");
+        if (l > 1) {
+            sb.append("            double[] w = ws[").append(l - 1).append("];\n");
+            sb.append("            double[] dp = dls[").append(l - 1).append("];\n");
+        }
+        if (nis * nos <= MAX_UNROLLED) {
+            for (int j = 0; j < nos; j++) {
+                sb.append("            {\n");
+                sb.append("                double g = d[").append(j).append("] * (z[").append(j).append("] < 0 ? ").append(neg).append(" : 1.0);\n");
+                for (int k = 0; k < nis; k++)
+                    sb.append("                dw[").append(j * nis + k).append("] += g * lp[").append(k).append("];\n");
+                sb.append("                db[").append(j).append("] += g;\n");
+                if (l > 1)
+                    for (int k = 0; k < nis; k++)
+                        sb.append("                dp[").append(k).append("] += g * w[").append(j * nis + k).append("];\n");
+                sb.append("            }\n");
+            }
+        } else {
+            sb.append("            for (int j = 0; j < ").append(nos).append("; j++) {\n");
+            sb.append("                int wo = j * ").append(nis).append(";\n");
+            sb.append("                double g = d[j] * (z[j] < 0 ? ").append(neg).append(" : 1.0);\n");
+            sb.append("                for (int k = 0; k < ").append(nis).append("; k++)\n");
+            sb.append("                    dw[wo + k] += g * lp[k];\n");
+            sb.append("                db[j] += g;\n");
+            if (l > 1) {
+                sb.append("                for (int k = 0; k < ").append(nis).append("; k++)\n");
+                sb.append("                    dp[k] += g * w[wo + k];\n");
+            }
+            sb.append("            }\n");
+        }
+        sb.append("        }\n");
+    }
+
+    //-- in memory compilation -----------------------------------------------------------
+
+    static byte[] compile(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new UnsupportedOperationException("no java compiler, a JDK is needed to specialize a network");
+
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+        boolean ok = compiler.getTask(null, fileManager, null, options, null, List.of(sourceFile)).call();
+        if (!ok)
+            throw new IllegalStateException("could not compile " + className + "\n" + source);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Compares generic and specialized (NetCompiler) fwd and fwd+bwd on the Iris and MNIST topologies, and checks that the
+ * derivatives are identical
+ */
+public class NetCompilerBenchmark {
+
+    /**
+     * @return nanos per sample of fwd+bwd
+     */
+    static double timeFwdBwd(NeuralNet nn, double[][] inputs, double[][] expecteds, int runs) {
+        long start = System.nanoTime();
+        for (int r = 0; r < runs; r++)
+            nn.computeFwdBwd(inputs[r % inputs.length], expecteds[r % inputs.length]);
+        nn.resetDws();
+        return (System.nanoTime() - start) / (double) runs;
+    }
+
+    /**
+     * @return nanos per sample of fwd
+     */
+    static double timeFwd(NeuralNet nn, double[][] inputs, int runs) {
+        long start = System.nanoTime();
+        for (int r = 0; r < runs; r++)
+            nn.computeFwd(inputs[r % inputs.length]);
+        return (System.nanoTime() - start) / (double) runs;
+    }
+
+    public static void main(String... args) {
+        Random random = new Random(0);
+        for (int[] layerSizes : new int[][] { { 4, 12, 3 }, { 784, 512, 10 } }) {
+            Config config = new Config();
+            config.layer_sizes = layerSizes;
+            NeuralNet generic = new NeuralNet(config);
+            NeuralNet specialized = new NeuralNet(config);
+            specialized.specialize();
+
+            double[][] inputs = new double[100][layerSizes[0]];
+            double[][] expecteds = new double[100][layerSizes[layerSizes.length - 1]];
+            for (int i = 0; i < inputs.length; i++) {
+                DataHelper.fill(random::nextDouble, inputs[i]);
+                expecteds[i][i % expecteds[i].length] = 1;
+            }
+
+            for (int i = 0; i < inputs.length; i++) {
+                generic.computeFwdBwd(inputs[i], expecteds[i]);
+                specialized.computeFwdBwd(inputs[i], expecteds[i]);
+            }
+            if (!Arrays.deepEquals(generic.dws, specialized.dws) || !Arrays.deepEquals(generic.dbs, specialized.dbs))
+                throw new IllegalStateException("derivatives differ for " + Arrays.toString(layerSizes));
+            generic.resetDws();
+            specialized.resetDws();
+
+            long weights = 0;
+            for (int l = 1; l < layerSizes.length; l++)
+                weights += (long) layerSizes[l] * layerSizes[l - 1];
+            int runs = (int) Math.max(200, Math.min(2_000_000, 500_000_000L / weights));
+            for (int warmup = 0; warmup < 2; warmup++) {
+                double fwd = timeFwd(generic, inputs, runs);
+                double fwdS = timeFwd(specialized, inputs, runs);
+                double fwdBwd = timeFwdBwd(generic, inputs, expecteds, runs);
+                double fwdBwdS = timeFwdBwd(specialized, inputs, expecteds, runs);
+                if (warmup == 1)
+                    NeuralNet.log(Arrays.toString(layerSizes) + String.format(" fwd generic:%.0fns specialized:%.0fns fwd+bwd generic:%.0fns specialized:%.0fns",
+                            fwd, fwdS, fwdBwd, fwdBwdS));
+            }
+        }
+    }
+}
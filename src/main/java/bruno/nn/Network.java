@@ -0,0 +1,103 @@
+package bruno.nn;
+
+import bruno.nn.DataHelper.SparseInput;
+
+/**
+ * What TrainingHelper needs from a network, implemented by NeuralNet (double), FloatNeuralNet (float) and ConvNet (conv blocks
+ * under a dense NeuralNet head)
+ * 
+ * @see NeuralNet#create(NeuralNet.Config)
+ */
+public interface Network extends Predictor {
+
+    NeuralNet.Config getConfig();
+
+    /**
+     * ratio of non zero inputs under which the sparse fwd/bwd path is faster than the dense one
+     */
+    default double maxSparseDensity() {
+        return 0;
+    }
+
+    /**
+     * fwd pass followed by backtracking, the derivatives of weights and biases are accumulated
+     */
+    void computeFwdBwd(double[] inputs, double[] expecteds);
+
+    /**
+     * same as computeFwdBwd(inputs, expecteds), sparse is the non zero values of inputs (or null)
+     * and can be used to skip zero inputs in the first layer
+     */
+    default void computeFwdBwd(double[] inputs, SparseInput sparse, double[] expecteds) {
+        computeFwdBwd(inputs, expecteds);
+    }
+
+    /**
+     * same as calling computeFwdBwd() for samples [from..from+n[
+     */
+    default void computeFwdBwdBatch(double[][] inputs, double[][] expecteds, int from, int n) {
+        for (int i = from; i < from + n; i++)
+            computeFwdBwd(inputs[i], expecteds[i]);
+    }
+
+    /**
+     * creates a network sharing weights and biases with this one, but with its own activations and derivatives,
+     * so that it can accumulate derivatives in another thread
+     */
+    default Network newWorker() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support parallel training");
+    }
+
+    /**
+     * add part [part/parts] of the derivatives accumulated by worker (incl. the number of samples for part 0),
+     * so that the reduction can be split between threads
+     */
+    default void addDws(Network worker, int part, int parts) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support parallel training");
+    }
+
+    /**
+     * number of leading layers which are not trained @see NeuralNet.Config#frozen
+     */
+    default int frozenLayers() {
+        return 0;
+    }
+
+    /**
+     * @return the output of the leading frozen layers for inputs (sparse is the non zero values of inputs, or null)
+     */
+    default double[] computeFrozen(double[] inputs, SparseInput sparse) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support frozen layers");
+    }
+
+    /**
+     * same as computeFwdBwd(), starting from the output of the leading frozen layers computed by computeFrozen()
+     */
+    default void computeFwdBwdFrozen(float[] frozenOutput, double[] expecteds) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support frozen layers");
+    }
+
+    /**
+     * magnitude pruning of the hidden layers: the smallest weights are set to 0 (and stay 0), so that a fraction sparsity of them is 0
+     */
+    default void prune(double sparsity) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support pruning");
+    }
+
+    /**
+     * @return true when prune() can be called, so that TrainConfig.pruneSparsity fails before the training starts
+     */
+    default boolean canPrune() {
+        return false;
+    }
+
+    /**
+     * apply the accumulated derivatives to weights and biases, and reset them (so resetDws() is not needed afterwards)
+     */
+    void applyDws();
+
+    /**
+     * reset the accumulated derivatives, e.g. before a worker computes its shard
+     */
+    void resetDws();
+}
@@ -1,14 +1,18 @@
 package bruno.nn;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import bruno.nn.DataHelper.SparseInput;
+
 /**
- * A very simple self-contained neural network, the activation function is the same for all layers
+ * A very simple self-contained neural network, the activation function of each layer is set by Config.activations
+ * (leaky relu for all layers by default)
  * 
  * It can learn MNIST in under <10 minutes with 95% accuracy
  * 
  */
-public class NeuralNet {
+public class NeuralNet implements Network {
 
     static long start = System.currentTimeMillis();
 
@@ -20,7 +24,7 @@ public class NeuralNet {
         System.err.println(String.format("%08d", System.currentTimeMillis() - start) + ":" + msg);
     }
 
-    static class Config {
+    static class Config implements Cloneable {
 
         /**
          * defines the number of neurons per layer
@@ -42,36 +46,145 @@ public class NeuralNet {
          */
         double rate = 0.3;
 
+        /**
+         * update rule of applyDws(), the state of the optimizer is allocated with the network, so it must be set before
+         */
+        Optimizer optimizer = Optimizer.SGD;
+
+        /**
+         * decay of the velocity, for MOMENTUM and NESTEROV
+         */
+        double momentum = 0.9;
+
+        /**
+         * decay of the first and second moments, for ADAM and ADAMW
+         */
+        double beta1 = 0.9;
+        double beta2 = 0.999;
+
+        /**
+         * added to the root of the second moment, for ADAM and ADAMW
+         */
+        double epsilon = 1e-8;
+
+        /**
+         * fraction of the weights removed at each step (times the rate), for ADAMW
+         */
+        double weightDecay = 0.01;
+
+        /**
+         * use the Java Vector API for the inner loops (requires --add-modules jdk.incubator.vector), 
+         * falls back to scalar loops when not available @see Kernels
+         */
+        boolean vectorKernels = false;
+
+        /**
+         * use single precision buffers @see NeuralNet#create(Config)
+         */
+        boolean float32 = false;
+
+        /**
+         * the fwd pass keeps only the sign of z (one bit per neuron, in masks) instead of z (zs),
+         * this is enough for the derivative of the activation function, and the gradients are unchanged
+         */
+        boolean signMasks = false;
+
+        /**
+         * maximum number of bytes of the buffers of the network, including the batch buffers @see MemoryPlanner
+         * 0 means no limit
+         */
+        long memoryBudget = 0;
+
+        /**
+         * gradient checkpointing in computeFwdBwdBatch(): the fwd pass keeps the batch activations only every checkpointEvery layers,
+         * the layers in between are recomputed during the backward pass. Higher values save more memory but recompute more layers,
+         * @see MemoryPlanner#checkpointReport(Config, int). 0 or 1 keeps all layers
+         */
+        int checkpointEvery = 0;
+
+        /**
+         * the layers with at least that many weights keep their weights and derivatives off heap @see OffHeapMatrix,
+         * 0 keeps all layers in double[]. Off heap layers are computed one sample at a time, by the generic loops.
+         * Not supported with float32
+         */
+        long offHeapWeights = 0;
+
+        /**
+         * frozen[l] is true when the weights and biases of layer l (i.e. ws[l]) are not trained, null trains all layers.
+         * The backward pass stops at the lowest trainable layer, and TrainingHelper caches the output of the leading frozen layers
+         * @see TrainingHelper.TrainConfig#cacheFrozen
+         * Not supported with float32
+         */
+        boolean[] frozen;
+
         // TODO: remove me
         boolean random_weight = true;
         boolean normalizeInitial;
         //        public boolean normalizez = false;
 
+        /**
+         * activation function of each layer: activations[l] is applied to the output of ws[l], null is LEAKY_RELU for all layers.
+         * SOFTMAX is only allowed for the output layer, the network is then trained with the cross entropy error instead of errorFunction()
+         */
+        Activation[] activations;
+
         //-- activation function ------------------------------------
         /**
          * factor of the activation function for z<0 (for z>0 this factor is always 1.0)
          */
-        final double reluNegF = 0.1;
+        final double reluNegF = Activation.RELU_NEG_F;
 
         /**
-         * activation function
-         * @param z sum of weighted values of neurons from previous layer + bias
+         * activation function of layer l of neurons (l >= 1)
          */
-        public double sigma(double z) {
-            if (z < 0)
-                return z * reluNegF;
-            else
-                return z;
+        public Activation activation(int l) {
+            return activations == null ? Activation.LEAKY_RELU : activations[l - 1];
         }
 
         /**
-         * derivative of activation function
+         * @return true when the output layer is a softmax trained with the cross entropy error
          */
-        public double sigmad(double z) {
-            if (z < 0)
-                return reluNegF;
-            else
-                return 1;
+        public boolean softmaxOutput() {
+            return activation(layer_sizes.length - 1) == Activation.SOFTMAX;
+        }
+
+        /**
+         * @return true when all layers use the default activation function (leaky relu)
+         */
+        public boolean leakyReluOnly() {
+            for (int l = 1; l < layer_sizes.length; l++)
+                if (activation(l) != Activation.LEAKY_RELU)
+                    return false;
+            return true;
+        }
+
+        /**
+         * @throws IllegalArgumentException when the activations do not fit the layers
+         */
+        void checkActivations() {
+            if (activations == null)
+                return;
+            if (activations.length != layer_sizes.length - 1)
+                throw new IllegalArgumentException("one activation per layer of weights expected, got " + activations.length);
+            for (int l = 1; l < layer_sizes.length; l++) {
+                if (activation(l) == Activation.SOFTMAX && l != layer_sizes.length - 1)
+                    throw new IllegalArgumentException("SOFTMAX is only allowed for the output layer");
+                if (signMasks && !activation(l).signOnly())
+                    throw new IllegalArgumentException("signMasks keeps only the sign of z, " + activation(l) + " needs z for its derivative");
+            }
+        }
+
+        /**
+         * @return a copy of this config with its own layer_sizes, the other arrays are shared
+         */
+        Config copy() {
+            try {
+                Config retVal = (Config) super.clone();
+                retVal.layer_sizes = layer_sizes.clone();
+                return retVal;
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
         }
     }
 
@@ -146,6 +259,11 @@ public class NeuralNet {
      */
     double[][] zs;
 
+    /**
+     * when Config.signMasks is set, replaces zs: bit j of masks[l] is set when z of neuron j of layer l is < 0
+     */
+    long[][] masks;
+
     /**
      * layers, i.e. neurons activation
      */
@@ -154,12 +272,25 @@ public class NeuralNet {
     /**
      * weight between neurons (each neuron of a given layer is connected to all neurons of previous layer)
      * ws[0] are the weights to update neurons of l[1] based on  l[0]
+     * 
+     * Each layer is stored row-major in a single array: the weight from neuron k of l[i] to neuron j of l[i+1] 
+     * is ws[i][j * layer_sizes[i] + k] 
      */
-    double[][][] ws;
+    double[][] ws;
     /**
      * bias, one per neuron
      */
     double[][] bs;
+    /**
+     * for the pruned layers, the kept weights in compressed sparse row form, null for the dense layers @see #prune(int, double)
+     * The pruned weights are 0 in ws, so the dense loops still compute the same values
+     */
+    CsrMatrix[] csr;
+    /**
+     * weights of the layers stored off heap, null for the layers in ws (and ws[l] is null for the layers in ows) 
+     * @see Config#offHeapWeights
+     */
+    OffHeapMatrix[] ows;
 
     // derivatives
 
@@ -172,14 +303,71 @@ public class NeuralNet {
      */
     double dls[][];
     /**
-     * accumulated network cost derivative vs derivative of: weights between neurons   
+     * accumulated network cost derivative vs derivative of: weights between neurons
+     * same layout as ws   
      */
-    double dws[][][];
+    double dws[][];
+    /**
+     * accumulated derivatives of the off heap layers, same layout as ows
+     */
+    OffHeapMatrix[] odws;
     /**
      * accumulated network cost derivative vs derivative of: bias   
      */
     double dbs[][];
 
+    // optimizer state, shared with the workers like ws and bs @see Config#optimizer
+
+    /**
+     * velocity (MOMENTUM, NESTEROV) or first moment (ADAM, ADAMW) of weights and biases, same layout as ws and bs, null for SGD
+     */
+    double[][] mws;
+    double[][] mbs;
+    /**
+     * second moment of weights and biases (ADAM, ADAMW), null otherwise
+     */
+    double[][] vws;
+    double[][] vbs;
+    /**
+     * number of applyDws() with samples, for the bias correction of ADAM.
+     * Each worker counts its own updates in async training
+     */
+    long steps;
+
+    // batch buffers, allocated on demand @see ensureBatchCapacity()
+
+    /**
+     * number of samples the batch buffers can hold
+     */
+    int batchCapacity;
+    /**
+     * all the batch buffers, buffers which are not live at the same time share the same memory @see MemoryPlanner
+     */
+    double[] arena;
+    /**
+     * offset in arena of the neurons activation for a batch of samples, layer l is [batch x layer_sizes[l]] row-major
+     */
+    int[] bls;
+    /**
+     * offset in arena of the values of z for a batch of samples, same layout as bls
+     */
+    int[] bzs;
+    /**
+     * when Config.signMasks is set, replaces bzs: one bit per neuron and sample, same layout as bzs
+     */
+    long[][] bmasks;
+    /**
+     * offset in arena of the network cost derivative vs neuron activations for a batch of samples, same layout as bls.
+     * During the backward pass each layer is turned in place into the derivative vs z (i.e. multiplied by sigmad)
+     */
+    int[] bdls;
+    /**
+     * offsets in arena of the activations and z recomputed during the backward pass, same as bls/bzs for the layers kept by the fwd pass
+     * @see Config#checkpointEvery
+     */
+    int[] rbls;
+    int[] rbzs;
+
     /**
      * network definition
      */
@@ -190,35 +378,139 @@ public class NeuralNet {
      */
     int layers;
 
+    /**
+     * inner loops implementation
+     */
+    Kernels kernels;
+
+    /**
+     * fwd and fwd+bwd compiled for the layer sizes of config, null for the generic loops @see #specialize()
+     */
+    NetCompiler.Specialized specialized;
+
     //-- initialization + resets ------------------------------------------------------------------------------------------------
     public NeuralNet(Config config) {
+        config.checkActivations();
+        MemoryPlanner.of(config, 0).checkBudget(config.memoryBudget);
         this.config = config;
+        this.kernels = Kernels.create(config.vectorKernels);
 
         layers = config.layer_sizes.length;
 
-        this.ls = new double[layers][];
-        for (int i = 0; i < layers; i++)
-            this.ls[i] = DataHelper.zeros(config.layer_sizes[i]);
-
-        // for each neuron, keep its z value (z: sum of weighted input (incl bias) before activation function)
-        this.zs = new double[layers][];
-        for (int i = 0; i < layers; i++)
-            this.zs[i] = DataHelper.zeros(config.layer_sizes[i]);
+        allocateActivations();
 
         // weights
         // ws[0] are the weights used to compute l[1] from l[0]
-        this.ws = new double[layers][][];
-        for (int i = 1; i < layers; i++)
-            this.ws[i - 1] = DataHelper.zeros2d(config.layer_sizes[i], config.layer_sizes[i - 1]);
+        this.ws = new double[layers][];
+        this.ows = new OffHeapMatrix[layers];
+        for (int i = 1; i < layers; i++) {
+            if (isOffHeap(i - 1))
+                this.ows[i - 1] = new OffHeapMatrix(config.layer_sizes[i], config.layer_sizes[i - 1]);
+            else
+                this.ws[i - 1] = DataHelper.zeros(config.layer_sizes[i] * config.layer_sizes[i - 1]);
+        }
 
         // biases, bs[0] will be used to compute l[1]
         this.bs = new double[layers][];
         for (int i = 1; i < layers; i++)
             this.bs[i - 1] = DataHelper.zeros(config.layer_sizes[i]);
+        this.csr = new CsrMatrix[layers];
 
         // populate weights
         resetWBs();
 
+        allocateDerivatives();
+        allocateOptimizer();
+    }
+
+    /**
+     * creates a worker for data parallel training: weights and biases are shared with master, 
+     * but the worker has its own activations and derivatives, so that it can run computeFwdBwd() in its own thread 
+     * @see #addDws(Network, int, int)
+     */
+    public NeuralNet(NeuralNet master) {
+        this.config = master.config;
+        this.kernels = master.kernels;
+        this.specialized = master.specialized;
+        this.layers = master.layers;
+        this.ws = master.ws;
+        this.bs = master.bs;
+        this.csr = master.csr;
+        this.ows = master.ows;
+        this.mws = master.mws;
+        this.mbs = master.mbs;
+        this.vws = master.vws;
+        this.vbs = master.vbs;
+        allocateActivations();
+        allocateDerivatives();
+    }
+
+    private void allocateOptimizer() {
+        Optimizer optimizer = config.optimizer;
+        if (optimizer.hasM() && hasOffHeapLayers())
+            throw new IllegalStateException("off heap layers are trained with SGD, " + optimizer + " would keep its state on the heap");
+        if (optimizer.hasM()) {
+            mws = zerosLike(ws);
+            mbs = zerosLike(bs);
+        }
+        if (optimizer.hasV()) {
+            vws = zerosLike(ws);
+            vbs = zerosLike(bs);
+        }
+    }
+
+    static double[][] zerosLike(double[][] vs) {
+        double[][] retVal = new double[vs.length][];
+        for (int l = 0; l < vs.length; l++)
+            if (vs[l] != null)
+                retVal[l] = new double[vs[l].length];
+        return retVal;
+    }
+
+    private void allocateActivations() {
+        this.ls = new double[layers][];
+        for (int i = 0; i < layers; i++)
+            this.ls[i] = DataHelper.zeros(config.layer_sizes[i]);
+
+        // for each neuron, keep its z value (z: sum of weighted input (incl bias) before activation function)
+        this.zs = new double[layers][];
+        if (config.signMasks) {
+            // or only its sign
+            this.masks = new long[layers][];
+            for (int i = 0; i < layers; i++)
+                this.masks[i] = newMask(config.layer_sizes[i]);
+        } else {
+            for (int i = 0; i < layers; i++)
+                this.zs[i] = DataHelper.zeros(config.layer_sizes[i]);
+        }
+    }
+
+    static long[] newMask(int n) {
+        return new long[(n + 63) >>> 6];
+    }
+
+    /**
+     * record the sign of z for neuron i, the mask must be cleared before a layer is computed
+     */
+    static void setSign(long[] mask, int i, double z) {
+        mask[i >>> 6] |= (z < 0 ? 1L : 0L) << i;
+    }
+
+    static boolean isNegative(long[] mask, int i) {
+        return (mask[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * derivative of the activation function of neuron j of layer l, for the last fwd pass
+     */
+    double sigmad(int l, int j) {
+        if (masks != null)
+            return config.activation(l).derivative(isNegative(masks[l], j));
+        else
+            return config.activation(l).derivative(zs[l][j]);
+    }
+
+    private void allocateDerivatives() {
         // Initialize derivative variables
         dh = 0;
         this.dls = new double[layers][];
@@ -228,9 +520,14 @@ public class NeuralNet {
 
         }
 
-        this.dws = new double[layers][][];
-        for (int li = 1; li < this.layers; li++)
-            this.dws[li - 1] = DataHelper.zeros2d(this.config.layer_sizes[li], this.config.layer_sizes[li - 1]);
+        this.dws = new double[layers][];
+        this.odws = new OffHeapMatrix[layers];
+        for (int li = 1; li < this.layers; li++) {
+            if (ows[li - 1] != null)
+                this.odws[li - 1] = new OffHeapMatrix(this.config.layer_sizes[li], this.config.layer_sizes[li - 1]);
+            else
+                this.dws[li - 1] = DataHelper.zeros(this.config.layer_sizes[li] * this.config.layer_sizes[li - 1]);
+        }
 
         this.dbs = new double[layers][];
         for (int li = 1; li < this.layers; li++)
@@ -238,6 +535,159 @@ public class NeuralNet {
 
     }
 
+    /**
+     * @return true if the weights of layer l (i.e. ws[l]) are stored off heap
+     */
+    boolean isOffHeap(int l) {
+        return config.offHeapWeights > 0 && (long) config.layer_sizes[l + 1] * config.layer_sizes[l] >= config.offHeapWeights;
+    }
+
+    /**
+     * @return true if the weights of layer l (i.e. ws[l]) are not trained
+     */
+    boolean isFrozen(int l) {
+        return config.frozen != null && l < config.frozen.length && config.frozen[l];
+    }
+
+    /**
+     * number of leading frozen layers, i.e. ls[frozenLayers()] does not change during training
+     */
+    @Override
+    public int frozenLayers() {
+        int retVal = 0;
+        while (retVal < layers - 1 && isFrozen(retVal))
+            retVal++;
+        return retVal;
+    }
+
+    /**
+     * the lowest trainable layer (i.e. ws index), the backward pass stops there
+     */
+    int trainableFrom() {
+        int retVal = 0;
+        while (retVal < layers - 2 && isFrozen(retVal))
+            retVal++;
+        return retVal;
+    }
+
+    boolean hasOffHeapLayers() {
+        for (OffHeapMatrix m : ows)
+            if (m != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * creates a FloatNeuralNet if config.float32, a NeuralNet otherwise
+     */
+    public static Network create(Config config) {
+        if (config.float32)
+            return new FloatNeuralNet(config);
+        return new NeuralNet(config);
+    }
+
+    @Override
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * replace the generic fwd and fwd+bwd passes of dense samples by code generated for the layer sizes of config,
+     * the config must not change afterwards @see NetCompiler
+     */
+    public void specialize() {
+        if (config.signMasks)
+            throw new IllegalStateException("specialized code keeps z, it does not support Config.signMasks");
+        if (!config.leakyReluOnly())
+            throw new IllegalStateException("specialized code inlines leaky relu, it does not support Config.activations");
+        if (hasOffHeapLayers())
+            throw new IllegalStateException("specialized code does not support off heap layers");
+        if (dls[0] != null)
+            throw new IllegalStateException("specialized code does not compute the derivatives of the inputs");
+        for (int l = 0; l < layers - 1; l++)
+            if (isFrozen(l))
+                throw new IllegalStateException("specialized code trains all layers, it does not support Config.frozen");
+        specialized = NetCompiler.compile(config);
+    }
+
+    /**
+     * bytes per layer and per category of this network, with batch buffers for batch samples
+     */
+    public String memoryReport(int batch) {
+        return MemoryPlanner.of(config, batch).report();
+    }
+
+    @Override
+    public Network newWorker() {
+        return new NeuralNet(this);
+    }
+
+    /**
+     * add part [part/parts] of the derivatives accumulated by a worker to this network's derivatives
+     */
+    @Override
+    public void addDws(Network worker, int part, int parts) {
+        NeuralNet w = (NeuralNet) worker;
+        for (int l = 0; l < layers - 1; l++) {
+            // nothing is accumulated for the frozen layers
+            if (isFrozen(l))
+                continue;
+            if (odws[l] != null)
+                odws[l].addPart(w.odws[l], part, parts);
+            else
+                DataHelper.addPart(w.dws[l], dws[l], part, parts);
+            DataHelper.addPart(w.dbs[l], dbs[l], part, parts);
+        }
+        if (part == 0)
+            dh += w.dh;
+    }
+
+    /**
+     * magnitude pruning: the weights of layer l (i.e. ws[l]) with the smallest absolute values are set to 0, so that a fraction
+     * sparsity of them is 0. The layer is then computed from its CSR form, and applyDws() keeps the pruned weights at 0.
+     * Pruning again with a higher sparsity prunes further (the weights already pruned are the smallest)
+     */
+    public void prune(int l, double sparsity) {
+        if (ows[l] != null)
+            throw new IllegalStateException("layer " + l + " is off heap, it can not be pruned");
+        if (isFrozen(l))
+            throw new IllegalStateException("layer " + l + " is frozen, it can not be pruned");
+        double threshold = CsrMatrix.threshold(ws[l], sparsity);
+        for (int i = 0; i < ws[l].length; i++)
+            if (Math.abs(ws[l][i]) <= threshold)
+                ws[l][i] = 0;
+        csr[l] = CsrMatrix.of(ws[l], config.layer_sizes[l + 1], config.layer_sizes[l]);
+        if (info)
+            NeuralNet.log("pruned layer " + l + " to density:" + csr[l].density());
+    }
+
+    /**
+     * prune all layers but the output one, which is small and where every weight matters, and the frozen ones, which are not
+     * trained @see Config#frozen
+     */
+    @Override
+    public void prune(double sparsity) {
+        for (int l = 0; l < layers - 2; l++)
+            if (!isFrozen(l))
+                prune(l, sparsity);
+    }
+
+    /**
+     * off heap layers can not be pruned
+     */
+    @Override
+    public boolean canPrune() {
+        for (int l = 0; l < layers - 2; l++)
+            if (ows[l] != null)
+                return false;
+        return true;
+    }
+
+    @Override
+    public double maxSparseDensity() {
+        return kernels.maxSparseDensity();
+    }
+
     /**
      * reset the whole nn
      */
@@ -254,23 +704,33 @@ public class NeuralNet {
     public void resetLs() {
         for (int i = 0; i < this.layers; i++)
             DataHelper.zeros(this.ls[i]);
-        for (int i = 0; i < this.layers; i++)
-            DataHelper.zeros(this.zs[i]);
+        for (int i = 0; i < this.layers; i++) {
+            if (this.zs[i] != null)
+                DataHelper.zeros(this.zs[i]);
+            if (this.masks != null)
+                Arrays.fill(this.masks[i], 0);
+        }
     }
 
     /**
      * randomly populate weights - typically happens only once
      */
     public void resetWBs() {
+        Arrays.fill(csr, null);
 
         Random random = new Random(config.seed);
         for (int l = 1; l < layers; l++) {
-            for (int no = 0; no < ws[l - 1].length; no++) {
-                double normalizef = (config.normalizeInitial ? (1 + ws[l - 1][no].length) : 1);
-                for (int ni = 0; ni < ws[l - 1][no].length; ni++) {
+            int nis = config.layer_sizes[l - 1];
+            for (int no = 0; no < config.layer_sizes[l]; no++) {
+                double normalizef = (config.normalizeInitial ? (1 + nis) : 1);
+                int wo = no * nis;
+                for (int ni = 0; ni < nis; ni++) {
                     double w;
                     w = (random.nextDouble() - 0.5);
-                    ws[l - 1][no][ni] = w * config.initial_weight_f * normalizef;
+                    if (ows[l - 1] != null)
+                        ows[l - 1].set((long) wo + ni, w * config.initial_weight_f * normalizef);
+                    else
+                        ws[l - 1][wo + ni] = w * config.initial_weight_f * normalizef;
                 }
                 double w;
                 w = (random.nextDouble() - 0.5);
@@ -289,17 +749,35 @@ public class NeuralNet {
         // dls is the derivatives of cost over neurons, needs to be reset after each sample
         for (int i = 1; i < this.layers; i++)
             DataHelper.zeros(this.dls[i]);
+        if (this.dls[0] != null)
+            DataHelper.zeros(this.dls[0]);
+    }
+
+    /**
+     * the backward pass of computeFwdBwd() also computes the derivatives of the cost vs the inputs into dls[0],
+     * so that the layers under this network can be trained @see ConvNet
+     */
+    public void keepInputDerivatives() {
+        if (specialized != null)
+            throw new IllegalStateException("specialized code does not compute the derivatives of the inputs");
+        if (dls[0] == null)
+            dls[0] = DataHelper.zeros(config.layer_sizes[0]);
     }
 
     /**
      * Reset the accumulated derivatives weights - must be done before training on a batch of sample
      */
+    @Override
     public void resetDws() {
         // derivative of cost over weights
         // accumulated derivative
         // note that the derivative of the error shows the opposite direction of the gradient we want to follow
-        for (int li = 1; li < this.layers; li++)
-            DataHelper.zeros2d(this.dws[li - 1]);
+        for (int li = 1; li < this.layers; li++) {
+            if (this.odws[li - 1] != null)
+                this.odws[li - 1].zero();
+            else
+                DataHelper.zeros(this.dws[li - 1]);
+        }
         for (int li = 1; li < this.layers; li++)
             DataHelper.zeros(this.dbs[li - 1]);
 
@@ -311,15 +789,12 @@ public class NeuralNet {
     /**
      * compute z: the weighted sum of previous layer activations + bias
      * @param li: input layer (i.e. previous)
-     * @param wo: weights
+     * @param w: weights of the layer
+     * @param wo: offset of the neuron's row in w
      * @param b: bias
      */
-    public double computeZ(double[] li, double[] wo, double b) {
-        double z = 0;
-        int ns = li.length;
-        for (int ni = 0; ni < ns; ni++) {
-            z += li[ni] * wo[ni];
-        }
+    public double computeZ(double[] li, double[] w, int wo, double b) {
+        double z = kernels.dot(li, 0, w, wo, li.length);
         z += b;
 
         return z;
@@ -328,19 +803,31 @@ public class NeuralNet {
     /**
      * compute all the activations of neurons for a given layer
      * @param li input layer
-     * @param wio weights between input and given layer
+     * @param wio weights between input and given layer, row-major
      * @param bo bias 
      * @param lo used to store the activation of neurons of given layer
      * @param zo used to store z for neurons of given layer
      */
-    public void computeLayer(double[] li, double[][] wio, double[] bo, double lo[], double[] zo) {
-        //        double aaacc = 0;
+    public void computeLayer(Activation act, double[] li, double[] wio, double[] bo, double lo[], double[] zo) {
+        computeLayer(act, li, wio, bo, lo, zo, null);
+    }
 
+    /**
+     * same as computeLayer(), z is stored in zo and/or its sign in mo when they are not null
+     */
+    void computeLayer(Activation act, double[] li, double[] wio, double[] bo, double lo[], double[] zo, long[] mo) {
+        //        double aaacc = 0;
+        int nis = li.length;
+        if (mo != null)
+            Arrays.fill(mo, 0);
         for (int no = 0; no < lo.length; no++) {
-            double z = computeZ(li, wio[no], bo[no]);
-            double a = config.sigma(z);
+            double z = computeZ(li, wio, no * nis, bo[no]);
+            double a = act.apply(z);
             lo[no] = a;
-            zo[no] = z;
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                setSign(mo, no, z);
             //            aaacc += Math.abs(a);
         }
         // System.err.println("before:" + new Stats(lo));
@@ -357,88 +844,459 @@ public class NeuralNet {
     /**
      * compute the full network in fwd pass
      */
+    @Override
     public double[] computeFwd(double[] inputs) {
         // only reason for a system copy is for UI
         System.arraycopy(inputs, 0, ls[0], 0, inputs.length);
 
+        if (specialized != null) {
+            specialized.computeFwd(ws, bs, ls, zs);
+            return ls[ls.length - 1];
+        }
         for (int i = 1; i < layers; i++) {
-            computeLayer(ls[i - 1], ws[i - 1], bs[i - 1], ls[i], zs[i]);
+            computeLayer(i);
         }
         return ls[ls.length - 1];
     }
 
+    /**
+     * compute layer l of the last fwd pass, only the kept weights are read when the layer is pruned
+     */
+    void computeLayer(int l) {
+        computeLayer(l, null);
+    }
+
+    /**
+     * same as computeLayer(int), when sparse is not null it holds the non zero values of ls[0] and l is 1
+     */
+    void computeLayer(int l, SparseInput sparse) {
+        Activation act = config.activation(l);
+        if (ows[l - 1] != null)
+            computeLayerOffHeap(act, ls[l - 1], sparse, ows[l - 1], bs[l - 1], ls[l], zs[l], mask(l));
+        else if (csr[l - 1] != null)
+            // a pruned first layer reads only its kept weights, which is usually less than the non zero inputs
+            computeLayerCsr(act, ls[l - 1], csr[l - 1], bs[l - 1], ls[l], zs[l], mask(l));
+        else if (sparse != null)
+            computeLayerSparse(act, sparse, ws[0], bs[0], ls[1], zs[1], mask(1));
+        else
+            computeLayer(act, ls[l - 1], ws[l - 1], bs[l - 1], ls[l], zs[l], mask(l));
+        if (act == Activation.SOFTMAX)
+            Activation.softmax(ls[l], 0, ls[l].length);
+    }
+
+    /**
+     * same as computeLayer(), for a pruned layer
+     * @param wio the kept weights between input and given layer
+     */
+    void computeLayerCsr(Activation act, double[] li, CsrMatrix wio, double[] bo, double lo[], double[] zo, long[] mo) {
+        if (mo != null)
+            Arrays.fill(mo, 0);
+        for (int no = 0; no < lo.length; no++) {
+            double z = wio.dot(no, li) + bo[no];
+            lo[no] = act.apply(z);
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                setSign(mo, no, z);
+        }
+    }
+
+    /**
+     * same as computeLayer(), for an off heap layer
+     * @param sparse if not null, the non zero values of li, only them are read
+     */
+    void computeLayerOffHeap(Activation act, double[] li, SparseInput sparse, OffHeapMatrix wio, double[] bo, double lo[], double[] zo, long[] mo) {
+        if (mo != null)
+            Arrays.fill(mo, 0);
+        for (int no = 0; no < lo.length; no++) {
+            double z = (sparse != null ? wio.dot(no, sparse) : wio.dot(no, li)) + bo[no];
+            lo[no] = act.apply(z);
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                setSign(mo, no, z);
+        }
+    }
+
+    /**
+     * same as computeLayer() for the first layer, but only the non zero inputs are read
+     * @param li non zero values of the input layer
+     */
+    public void computeLayerSparse(Activation act, SparseInput li, double[] wio, double[] bo, double lo[], double[] zo) {
+        computeLayerSparse(act, li, wio, bo, lo, zo, null);
+    }
+
+    void computeLayerSparse(Activation act, SparseInput li, double[] wio, double[] bo, double lo[], double[] zo, long[] mo) {
+        int nis = config.layer_sizes[0];
+        if (mo != null)
+            Arrays.fill(mo, 0);
+        int[] indexes = li.indexes;
+        double[] values = li.values;
+        for (int no = 0; no < lo.length; no++) {
+            int wo = no * nis;
+            double z = 0;
+            for (int p = 0; p < indexes.length; p++)
+                z += values[p] * wio[wo + indexes[p]];
+            z += bo[no];
+            lo[no] = act.apply(z);
+            if (zo != null)
+                zo[no] = z;
+            if (mo != null)
+                setSign(mo, no, z);
+        }
+    }
+
+    /**
+     * @return the sign mask of layer l, null when z is stored in zs
+     */
+    long[] mask(int l) {
+        return masks == null ? null : masks[l];
+    }
+
+    /**
+     * compute the full network in fwd pass, the first layer reads only the non zero inputs when sparse is not null
+     */
+    @Override
+    public double[] computeFwd(double[] inputs, SparseInput sparse) {
+        if (sparse == null)
+            return computeFwd(inputs);
+        computeFwd(inputs, sparse, layers - 1);
+        return ls[ls.length - 1];
+    }
+
+    /**
+     * the activations of the leading frozen layers' output, i.e. ls[frozenLayers()]
+     */
+    @Override
+    public double[] computeFrozen(double[] inputs, SparseInput sparse) {
+        int last = frozenLayers();
+        if (sparse == null) {
+            System.arraycopy(inputs, 0, ls[0], 0, inputs.length);
+            for (int i = 1; i <= last; i++)
+                computeLayer(i);
+        } else if (last > 0) {
+            computeFwd(inputs, sparse, last);
+        }
+        return ls[last];
+    }
+
+    /**
+     * fwd pass of layers [1;last], the first layer reads only the non zero inputs
+     */
+    void computeFwd(double[] inputs, SparseInput sparse, int last) {
+        System.arraycopy(inputs, 0, ls[0], 0, inputs.length);
+
+        computeLayer(1, sparse);
+        for (int i = 2; i <= last; i++) {
+            computeLayer(i);
+        }
+    }
+
     //-- backtracking --------------------------------------
 
+    @Override
     public void computeFwdBwd(double[] inputs, double[] expecteds) {
+        computeFwdBwd(inputs, null, expecteds);
+    }
 
-        computeFwd(inputs);
+    /**
+     * @param sparse if not null, the non zero inputs: the derivatives of weights for zero inputs are not updated (they would be incremented by 0)
+     */
+    @Override
+    public void computeFwdBwd(double[] inputs, SparseInput sparse, double[] expecteds) {
+        if (specialized != null && sparse == null) {
+            System.arraycopy(inputs, 0, ls[0], 0, inputs.length);
+            specialized.computeFwdBwd(ws, bs, ls, zs, dls, dws, dbs, expecteds);
+            this.dh += 1;
+            return;
+        }
 
+        computeFwd(inputs, sparse);
+        computeBwd(sparse, expecteds);
+    }
+
+    /**
+     * same as computeFwdBwd(), the fwd pass starts from the output of the leading frozen layers
+     * @param frozenOutput ls[frozenLayers()] computed by computeFrozen()
+     */
+    @Override
+    public void computeFwdBwdFrozen(float[] frozenOutput, double[] expecteds) {
+        int first = frozenLayers();
+        for (int k = 0; k < frozenOutput.length; k++)
+            ls[first][k] = frozenOutput[k];
+        for (int i = first + 1; i < layers; i++)
+            computeLayer(i);
+        computeBwd(null, expecteds);
+    }
+
+    /**
+     * backtracking of the last fwd pass, down to the lowest trainable layer
+     * @param sparse if not null, the non zero inputs
+     */
+    void computeBwd(SparseInput sparse, double[] expecteds) {
         resetDls();
         // keep count of samples, because the derivatives of weight and biases are beeing accumulated
         this.dh += 1;
 
-        // output layer derivative depends on the error function
+        // output layer derivative depends on the error function,
+        // for softmax + cross entropy it is the derivative vs z, and the derivative of softmax is then 1
+        boolean softmax = config.softmaxOutput();
         for (int j = 0; j < config.layer_sizes[layers - 1]; j++) {
-            double dCostALj = errorFunctiond(this.ls[layers - 1][j], expecteds[j]);
+            double dCostALj = softmax ? this.ls[layers - 1][j] - expecteds[j] : errorFunctiond(this.ls[layers - 1][j], expecteds[j]);
             this.dls[layers - 1][j] += DataHelper.noNan(dCostALj);
         }
 
-        for (int l = layers - 1; l > 0; l--) {
+        int bottom = trainableFrom();
+        for (int l = layers - 1; l > bottom; l--) {
+            int nis = this.ls[l - 1].length;
+            CsrMatrix sw = this.csr[l - 1];
+            OffHeapMatrix ow = this.ows[l - 1];
+            // the derivatives of a frozen layer are not accumulated, it may still be needed to propagate dls below
+            boolean trained = !isFrozen(l - 1);
+            // dls of the layer under l is only needed to train the layers under it (or the layers under the inputs)
+            boolean propagate = l - 1 > bottom || (l == 1 && this.dls[0] != null);
             for (int j = 0; j < this.ls[l].length; j++) {
+                // offset of the weights of neuron j
+                int wo = j * nis;
                 // the derivative of network cost VS a specific weight is computed from 3 parts 
 
                 // 1) derivative of network cost VS the activation the neuron computed from this weight amongst others
                 double dCostA = this.dls[l][j];
                 // 2) derivative of the activation function vs z (sum of weighted activation of previous layer ' neurons + bias)
-                double dAZ = this.config.sigmad(this.zs[l][j]);
-
-                for (int k = 0; k < this.ls[l - 1].length; k++) {
-                    // 3) derivative of z vs the weight 
-                    double dZW = this.ls[l - 1][k];
-
-                    double dCostW = dCostA * dAZ * dZW;
-                    this.dws[l - 1][j][k] += DataHelper.noNan(dCostW);
+                double dAZ = sigmad(l, j);
+
+                // 3) derivative of z vs the weight is the activation of the previous layer' neuron: 
+                // dws[l - 1][wo + k] += dCostA * dAZ * ls[l - 1][k]
+                if (trained) {
+                    if (ow != null && l == 1 && sparse != null)
+                        this.odws[0].addToRow(j, dCostA * dAZ, sparse);
+                    else if (ow != null)
+                        this.odws[l - 1].addToRow(j, dCostA * dAZ, this.ls[l - 1]);
+                    else if (sw != null)
+                        sw.axpyPattern(j, dCostA * dAZ, this.ls[l - 1], this.dws[l - 1]);
+                    else if (l == 1 && sparse != null)
+                        axpySparse(dCostA * dAZ, sparse, this.dws[0], wo);
+                    else
+                        kernels.axpy(dCostA * dAZ, this.ls[l - 1], 0, this.dws[l - 1], wo, nis);
+                    // for bias, the formula is the same, and the derivative of z VS the bias is always 1
+                    double dZB = 1;
+                    double dCostB = dCostA * dAZ * dZB;
+                    this.dbs[l - 1][j] += DataHelper.noNan(dCostB);
                 }
-                // for bias, the formula is the same, and the derivative of z VS the bias is always 1
-                double dZB = 1;
-                double dCostB = dCostA * dAZ * dZB;
-                this.dbs[l - 1][j] += DataHelper.noNan(dCostB);
 
                 // now compute the derivative of network cost VS neuron activations of this layer, because it will be used for the adjacent previous layer 
-                if (l > 1) {
-                    for (int k = 0; k < this.ls[l - 1].length; k++) {
-                        double dZPrevA = this.ws[l - 1][j][k];
-                        double dCostPrevA = (dCostA * dAZ * dZPrevA);
-                        this.dls[l - 1][k] += DataHelper.noNan(dCostPrevA);
-                    }
-                }
+                // the derivative of z vs the previous neuron activation is the weight:
+                // dls[l - 1][k] += dCostA * dAZ * ws[l - 1][wo + k]
+                if (propagate && ow != null)
+                    ow.axpy(j, dCostA * dAZ, this.dls[l - 1]);
+                else if (propagate && sw != null)
+                    sw.axpy(j, dCostA * dAZ, this.dls[l - 1]);
+                else if (propagate)
+                    kernels.axpy(dCostA * dAZ, this.ws[l - 1], wo, this.dls[l - 1], 0, nis);
+            }
+        }
+    }
+
+    /**
+     * y[yOff+x.indexes[p]] += alpha * x.values[p]
+     */
+    static void axpySparse(double alpha, SparseInput x, double[] y, int yOff) {
+        int[] indexes = x.indexes;
+        double[] values = x.values;
+        for (int p = 0; p < indexes.length; p++)
+            y[yOff + indexes[p]] += alpha * values[p];
+    }
+
+    //-- batch ------------------------------------------------------------------------------
+
+    /**
+     * make sure that the batch buffers can hold n samples
+     */
+    public void ensureBatchCapacity(int n) {
+        if (n <= batchCapacity)
+            return;
+        if (hasOffHeapLayers())
+            throw new IllegalStateException("off heap layers are computed one sample at a time");
+        MemoryPlanner plan = MemoryPlanner.of(config, n);
+        plan.checkBudget(config.memoryBudget);
+        // let the previous arena be collected first
+        this.arena = null;
+        this.arena = new double[plan.arenaSize];
+        this.bls = new int[layers];
+        this.bzs = new int[layers];
+        this.bmasks = new long[layers][];
+        this.bdls = new int[layers];
+        this.rbls = new int[layers];
+        this.rbzs = new int[layers];
+        this.bls[0] = this.rbls[0] = plan.get("bls0").offset;
+        // nothing is computed for the input layer
+        for (int i = 1; i < layers; i++) {
+            boolean kept = keepsBatchLayer(i);
+            this.bls[i] = plan.get("bls" + i).offset;
+            this.rbls[i] = kept ? this.bls[i] : plan.get("rbls" + i).offset;
+            if (config.signMasks) {
+                this.bmasks[i] = newMask(n * config.layer_sizes[i]);
+            } else {
+                // the fwd pass computes z in place for the layers which are not kept
+                this.bzs[i] = kept ? plan.get("bzs" + i).offset : this.bls[i];
+                this.rbzs[i] = kept ? this.bzs[i] : plan.get("rbzs" + i).offset;
             }
+            this.bdls[i] = plan.get("bdls" + i).offset;
         }
+        batchCapacity = n;
+    }
+
+    boolean keepsBatchLayer(int l) {
+        return MemoryPlanner.keepsLayer(l, layers, config.checkpointEvery);
     }
 
     /**
-     * apply the partial derivatives of cost vs all weights and biases
+     * compute all the activations of neurons for a given layer, for the n first samples of the batch buffers
+     */
+    public void computeLayerBatch(int l, int n) {
+        if (keepsBatchLayer(l))
+            computeLayerBatch(l, n, bls[l - 1], bls[l], config.signMasks ? bls[l] : bzs[l], bmasks[l]);
+        else
+            computeLayerBatch(l, n, bls[l - 1], bls[l], bls[l], null);
+    }
+
+    /**
+     * compute again a layer which was not kept by the fwd pass, during the backward pass
+     */
+    void recomputeLayerBatch(int l, int n) {
+        computeLayerBatch(l, n, rbls[l - 1], rbls[l], config.signMasks ? rbls[l] : rbzs[l], bmasks[l]);
+    }
+
+    /**
+     * @param li offset of the input activations in arena
+     * @param lo offset of the output activations in arena
+     * @param zo offset of z in arena, z is computed in place when zo == lo
+     * @param mo receives the signs of z when not null
+     */
+    void computeLayerBatch(int l, int n, int li, int lo, int zo, long[] mo) {
+        int nis = config.layer_sizes[l - 1];
+        int nos = config.layer_sizes[l];
+        double[] a = arena;
+        Activation act = config.activation(l);
+        // z = b + a.w^T
+        MatrixHelper.broadcastRows(bs[l - 1], 0, a, zo, n, nos);
+        MatrixHelper.multiplyABt(a, li, ws[l - 1], 0, a, zo, n, nos, nis);
+        if (mo != null) {
+            Arrays.fill(mo, 0);
+            for (int i = 0; i < n * nos; i++)
+                setSign(mo, i, a[zo + i]);
+        }
+        act.apply(a, zo, a, lo, n * nos);
+        if (act == Activation.SOFTMAX)
+            for (int i = 0; i < n; i++)
+                Activation.softmax(a, lo + i * nos, nos);
+    }
+
+    /**
+     * compute the full network in fwd pass for samples inputs[from..from+n[, the results are in arena, at offset bls[layers - 1]
+     */
+    public void computeFwdBatch(double[][] inputs, int from, int n) {
+        ensureBatchCapacity(n);
+        int nis = config.layer_sizes[0];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(inputs[from + i], 0, arena, bls[0] + i * nis, nis);
+
+        for (int l = 1; l < layers; l++)
+            computeLayerBatch(l, n);
+    }
+
+    /**
+     * same as calling computeFwdBwd() for samples [from..from+n[, but the batch is processed as matrix-matrix products,
+     * so that the weights are streamed through the cache once per batch instead of once per sample.
+     * The accumulated derivatives are the same, up to floating point reassociation 
+     */
+    @Override
+    public void computeFwdBwdBatch(double[][] inputs, double[][] expecteds, int from, int n) {
+        if (hasOffHeapLayers()) {
+            Network.super.computeFwdBwdBatch(inputs, expecteds, from, n);
+            return;
+        }
+        computeFwdBatch(inputs, from, n);
+
+        this.dh += n;
+
+        // output layer derivative depends on the error function, see computeBwd()
+        boolean softmax = config.softmaxOutput();
+        int nos = config.layer_sizes[layers - 1];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < nos; j++) {
+                double output = arena[bls[layers - 1] + i * nos + j];
+                double dCostALj = softmax ? output - expecteds[from + i][j] : errorFunctiond(output, expecteds[from + i][j]);
+                arena[bdls[layers - 1] + i * nos + j] = DataHelper.noNan(dCostALj);
+            }
+        }
+
+        int bottom = trainableFrom();
+        for (int l = layers - 1; l > bottom; l--) {
+            // the layers under l which were not kept by the fwd pass are computed again, from the kept layer under them
+            if (keepsBatchLayer(l))
+                for (int r = MemoryPlanner.previousKept(l, layers, config.checkpointEvery) + 1; r < l; r++)
+                    recomputeLayerBatch(r, n);
+
+            int nis = config.layer_sizes[l - 1];
+            nos = config.layer_sizes[l];
+            double[] a = arena;
+            int dl = this.bdls[l];
+            // derivative of cost vs z: dCostA * dAZ
+            if (config.signMasks)
+                config.activation(l).multiplyDerivative(a, dl, this.bmasks[l], n * nos);
+            else
+                config.activation(l).multiplyDerivative(a, dl, a, this.rbzs[l], n * nos);
+
+            // derivative of z vs the weight is the activation of the previous layer, and 1 for the bias 
+            if (!isFrozen(l - 1)) {
+                MatrixHelper.multiplyAtB(a, dl, a, rbls[l - 1], dws[l - 1], 0, n, nos, nis);
+                MatrixHelper.sumRows(a, dl, dbs[l - 1], 0, n, nos);
+            }
+
+            // derivative of cost vs activations of the previous layer
+            if (l - 1 > bottom) {
+                Arrays.fill(a, bdls[l - 1], bdls[l - 1] + n * nis, 0);
+                MatrixHelper.multiplyAB(a, dl, ws[l - 1], 0, a, bdls[l - 1], n, nos, nis);
+            }
+        }
+    }
+
+    /**
+     * apply the partial derivatives of cost vs all weights and biases, with the update rule of Config.optimizer
      * Note that since we want to improve (lower) the score, we need
-     * to apply this changes in opposite direction
+     * to apply this changes in opposite direction.
+     * The derivatives are reset in the same pass @see Optimizer
      */
+    @Override
     public void applyDws() {
         if (this.dh == 0)
             return;
+        Optimizer optimizer = config.optimizer;
+        this.steps++;
         for (int l = 1; l < this.layers; l++) {
-            for (int j = 0; j < this.ls[l].length; j++) {
-                for (int k = 0; k < this.ls[l - 1].length; k++) {
-                    // The accumulated derivative (dws) is divided by number of samples (dh) to get the average derivative
-                    double gradientW = this.dws[l - 1][j][k] / this.dh;
-                    // apply the learning rate
-                    gradientW *= this.config.rate;
-                    // apply the gradient in opposite direction
-                    this.ws[l - 1][j][k] -= DataHelper.noNan(gradientW);
-                }
-                // bias follow the same logic as weights
-                double gradientB = this.config.rate * this.dbs[l - 1][j] / this.dh;
-                this.bs[l - 1][j] -= DataHelper.noNan(gradientB);
+            if (isFrozen(l - 1))
+                continue;
+            // The accumulated derivative (dws) is divided by number of samples (dh) to get the average derivative,
+            // then the learning rate is applied, and the gradient is applied in opposite direction
+            // only the kept weights of a pruned layer are updated (the batch path computes the derivatives of all weights)
+            if (this.ows[l - 1] != null) {
+                this.ows[l - 1].descend(this.odws[l - 1], this.dh, this.config.rate);
+            } else if (optimizer == Optimizer.SGD) {
+                if (this.csr[l - 1] != null)
+                    this.csr[l - 1].descend(this.ws[l - 1], this.dws[l - 1], this.dh, this.config.rate);
+                else
+                    kernels.descend(this.ws[l - 1], this.dws[l - 1], this.ws[l - 1].length, this.dh, this.config.rate);
+            } else {
+                optimizer.update(ws[l - 1], dws[l - 1], mws[l - 1], vws == null ? null : vws[l - 1], ws[l - 1].length, dh, config, steps);
+                if (this.csr[l - 1] != null)
+                    this.csr[l - 1].mask(this.ws[l - 1]);
             }
+            // bias follow the same logic as weights
+            optimizer.update(bs[l - 1], dbs[l - 1], mbs == null ? null : mbs[l - 1], vbs == null ? null : vbs[l - 1], bs[l - 1].length, dh, config,
+                    steps);
         }
+        this.dh = 0;
     }
 
     //    /**
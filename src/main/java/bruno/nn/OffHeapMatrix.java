@@ -0,0 +1,193 @@
+package bruno.nn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import bruno.nn.DataHelper.SparseInput;
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Row-major matrix of doubles stored outside of the java heap, for the layers too large for a double[] (2^31 elements),
+ * or large enough that the GC should not have to deal with them.
+ *
+ * The rows are stored in direct buffers of at most CHUNK_BYTES, each aligned on ALIGNMENT bytes. A row never spans 2 chunks,
+ * so the inner loops run on a single buffer with int offsets, while element indexes are long.
+ *
+ * Direct buffers are limited by -XX:MaxDirectMemorySize (by default the maximum heap size), their memory is released
+ * when the matrix is garbage collected.
+ *
+ * @see Config#offHeapWeights
+ */
+public class OffHeapMatrix {
+
+    /**
+     * alignment of each chunk, a cache line (and the widest vector register)
+     */
+    static final int ALIGNMENT = 64;
+    /**
+     * maximum size of a chunk
+     */
+    static final long CHUNK_BYTES = 1L << 30;
+
+    final int rows;
+    final int columns;
+    final int rowsPerChunk;
+    final DoubleBuffer[] chunks;
+
+    public OffHeapMatrix(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        this.rowsPerChunk = (int) Math.max(1, Math.min(rows, CHUNK_BYTES / Double.BYTES / columns));
+        this.chunks = new DoubleBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+        for (int c = 0; c < chunks.length; c++) {
+            int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+            // alignedSlice() rounds both ends to ALIGNMENT, so the size is rounded up first
+            int size = (chunkRows * columns * Double.BYTES + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+            ByteBuffer bytes = ByteBuffer.allocateDirect(size + ALIGNMENT).alignedSlice(ALIGNMENT);
+            chunks[c] = bytes.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+    }
+
+    /**
+     * number of elements
+     */
+    public long length() {
+        return (long) rows * columns;
+    }
+
+    public long sizeInBytes() {
+        return length() * Double.BYTES;
+    }
+
+    public double get(long i) {
+        int row = (int) (i / columns);
+        return chunk(row).get(offset(row) + (int) (i % columns));
+    }
+
+    public void set(long i, double v) {
+        int row = (int) (i / columns);
+        chunk(row).put(offset(row) + (int) (i % columns), v);
+    }
+
+    private DoubleBuffer chunk(int row) {
+        return chunks[row / rowsPerChunk];
+    }
+
+    /**
+     * offset of a row in its chunk
+     */
+    private int offset(int row) {
+        return (row % rowsPerChunk) * columns;
+    }
+
+    // -- kernels, the same loops as ScalarKernels
+
+    /**
+     * @return sum of row j * x
+     */
+    public double dot(int j, double[] x) {
+        DoubleBuffer b = chunk(j);
+        int o = offset(j);
+        double z = 0;
+        for (int k = 0; k < columns; k++)
+            z += x[k] * b.get(o + k);
+        return z;
+    }
+
+    /**
+     * @return sum of row j * x, only the non zero values of x are read
+     */
+    public double dot(int j, SparseInput x) {
+        DoubleBuffer b = chunk(j);
+        int o = offset(j);
+        int[] indexes = x.indexes;
+        double[] values = x.values;
+        double z = 0;
+        for (int p = 0; p < indexes.length; p++)
+            z += values[p] * b.get(o + indexes[p]);
+        return z;
+    }
+
+    /**
+     * y += alpha * row j
+     */
+    public void axpy(int j, double alpha, double[] y) {
+        DoubleBuffer b = chunk(j);
+        int o = offset(j);
+        for (int k = 0; k < columns; k++)
+            y[k] += alpha * b.get(o + k);
+    }
+
+    /**
+     * row j += alpha * x
+     */
+    public void addToRow(int j, double alpha, double[] x) {
+        DoubleBuffer b = chunk(j);
+        int o = offset(j);
+        for (int k = 0; k < columns; k++)
+            b.put(o + k, b.get(o + k) + alpha * x[k]);
+    }
+
+    /**
+     * row j += alpha * x, only for the non zero values of x
+     */
+    public void addToRow(int j, double alpha, SparseInput x) {
+        DoubleBuffer b = chunk(j);
+        int o = offset(j);
+        int[] indexes = x.indexes;
+        double[] values = x.values;
+        for (int p = 0; p < indexes.length; p++)
+            b.put(o + indexes[p], b.get(o + indexes[p]) + alpha * values[p]);
+    }
+
+    /**
+     * gradient descent step: this -= (dw / dh) * rate, and dw is reset to 0 in the same pass
+     */
+    public void descend(OffHeapMatrix dw, double dh, double rate) {
+        for (int j = 0; j < rows; j++) {
+            DoubleBuffer w = chunk(j);
+            DoubleBuffer d = dw.chunk(j);
+            int o = offset(j);
+            for (int k = o; k < o + columns; k++) {
+                w.put(k, w.get(k) - (d.get(k) / dh) * rate);
+                d.put(k, 0);
+            }
+        }
+    }
+
+    public void zero() {
+        double[] zeros = new double[columns];
+        for (int j = 0; j < rows; j++)
+            chunk(j).put(offset(j), zeros);
+    }
+
+    /**
+     * add rows [part/parts] of from, same as DataHelper.addPart() by rows
+     */
+    public void addPart(OffHeapMatrix from, int part, int parts) {
+        int start = (int) ((long) rows * part / parts);
+        int end = (int) ((long) rows * (part + 1) / parts);
+        for (int j = start; j < end; j++) {
+            DoubleBuffer to = chunk(j);
+            DoubleBuffer f = from.chunk(j);
+            int o = offset(j);
+            for (int k = o; k < o + columns; k++)
+                to.put(k, to.get(k) + f.get(k));
+        }
+    }
+
+    /**
+     * copy row j into to
+     */
+    public void getRow(int j, double[] to) {
+        chunk(j).get(offset(j), to, 0, columns);
+    }
+
+    /**
+     * copy from into row j
+     */
+    public void setRow(int j, double[] from) {
+        chunk(j).put(offset(j), from, 0, columns);
+    }
+}
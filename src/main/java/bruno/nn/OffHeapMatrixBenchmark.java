@@ -0,0 +1,78 @@
+package bruno.nn;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import bruno.nn.DataHelper.SparseInput;
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Trains networks with a wide sparse first layer of increasing size, with the weights on the heap and off heap (OffHeapMatrix),
+ * and reports the time spent in GC (young collections during training, then a full collection).
+ * Also checks that both storages give the same weights.
+ * Run with e.g. -Xmx2g -XX:MaxDirectMemorySize=2g
+ */
+public class OffHeapMatrixBenchmark {
+
+    public static void main(String... args) {
+        Random random = new Random(0);
+        int hidden = 256;
+        for (int inputs : new int[] { 4_000, 40_000, 200_000 }) {
+            // embedding-like samples: a few non zero inputs out of many
+            double[][] samples = new double[200][inputs];
+            double[][] expecteds = new double[samples.length][];
+            SparseInput[] sparses = new SparseInput[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                for (int k = 0; k < 20; k++)
+                    samples[i][random.nextInt(inputs)] = random.nextDouble();
+                sparses[i] = new SparseInput(samples[i]);
+                expecteds[i] = DataHelper.toArgmax(10, i % 10);
+            }
+            double[] reference = null;
+            for (long offHeapWeights : new long[] { 0, 1 }) {
+                Config config = new Config();
+                config.layer_sizes = new int[] { inputs, hidden, 10 };
+                config.rate = 0.01;
+                config.offHeapWeights = offHeapWeights;
+                NeuralNet nn = new NeuralNet(config);
+                System.gc();
+                long[] gc0 = gcTimeAndCount();
+                long start = System.nanoTime();
+                for (int step = 0; step < 5; step++) {
+                    for (int i = 0; i < samples.length; i++)
+                        nn.computeFwdBwd(samples[i], sparses[i], expecteds[i]);
+                    nn.applyDws();
+                }
+                long trainNanos = System.nanoTime() - start;
+                long[] gc1 = gcTimeAndCount();
+                long fullStart = System.nanoTime();
+                System.gc();
+                long fullNanos = System.nanoTime() - fullStart;
+
+                double[] weights = new double[hidden];
+                for (int j = 0; j < hidden; j++)
+                    weights[j] = offHeapWeights > 0 ? nn.ows[0].get((long) j * inputs + j) : nn.ws[0][j * inputs + j];
+                if (reference == null)
+                    reference = weights;
+                NeuralNet.log(String.format("%,12d weights %s: train %.0fms, gc during training %dms (%d collections), full gc %.1fms, same weights:%s",
+                        (long) inputs * hidden, offHeapWeights > 0 ? "off heap" : "on heap ", trainNanos / 1e6, gc1[0] - gc0[0], gc1[1] - gc0[1],
+                        fullNanos / 1e6, Arrays.equals(reference, weights)));
+            }
+        }
+    }
+
+    /**
+     * total time (ms) and number of collections of all collectors
+     */
+    static long[] gcTimeAndCount() {
+        long time = 0;
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return new long[] { time, count };
+    }
+}
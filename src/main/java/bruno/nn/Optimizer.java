@@ -0,0 +1,153 @@
+package bruno.nn;
+
+import bruno.nn.NeuralNet.Config;
+
+/**
+ * Update rule of applyDws() @see NeuralNet.Config#optimizer
+ *
+ * g is the average derivative dw / dh. The state of the optimizer has the same layout as the weights: the velocity m for MOMENTUM
+ * and NESTEROV, the first and second moments m and v for ADAM and ADAMW.
+ * An update is a single pass over the weights, their derivatives and the state, which also resets the derivatives to 0,
+ * so nothing is allocated and resetDws() is not needed after applyDws().
+ * SGD has no state, it is Kernels.descend().
+ */
+public enum Optimizer {
+    /**
+     * w -= rate * g
+     */
+    SGD,
+    /**
+     * m = momentum * m + g, w -= rate * m
+     */
+    MOMENTUM,
+    /**
+     * m = momentum * m + g, w -= rate * (g + momentum * m)
+     */
+    NESTEROV,
+    /**
+     * m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2, w -= rate * m' / (sqrt(v') + epsilon)
+     * where m' and v' are m and v corrected for their bias towards 0 at the first steps
+     */
+    ADAM,
+    /**
+     * ADAM, with a weight decay decoupled from the gradient: w -= rate * weightDecay * w
+     */
+    ADAMW;
+
+    /**
+     * @return true when the state has a first moment (or velocity) m
+     */
+    boolean hasM() {
+        return this != SGD;
+    }
+
+    /**
+     * @return true when the state has a second moment v
+     */
+    boolean hasV() {
+        return this == ADAM || this == ADAMW;
+    }
+
+    /**
+     * update w[0..n[ from dw[0..n[, and set dw to 0
+     * @param m velocity or first moment, null for SGD
+     * @param v second moment, null unless ADAM or ADAMW
+     * @param step number of this update, from 1, for the bias correction of ADAM
+     */
+    public void update(double[] w, double[] dw, double[] m, double[] v, int n, double dh, Config config, long step) {
+        double rate = config.rate;
+        double mu = config.momentum;
+        switch (this) {
+        case SGD:
+            for (int i = 0; i < n; i++) {
+                w[i] -= (dw[i] / dh) * rate;
+                dw[i] = 0;
+            }
+            break;
+        case MOMENTUM:
+            for (int i = 0; i < n; i++) {
+                double mi = mu * m[i] + dw[i] / dh;
+                m[i] = mi;
+                w[i] -= rate * mi;
+                dw[i] = 0;
+            }
+            break;
+        case NESTEROV:
+            for (int i = 0; i < n; i++) {
+                double g = dw[i] / dh;
+                double mi = mu * m[i] + g;
+                m[i] = mi;
+                w[i] -= rate * (g + mu * mi);
+                dw[i] = 0;
+            }
+            break;
+        default:
+            double b1 = config.beta1;
+            double b2 = config.beta2;
+            double eps = config.epsilon;
+            // the bias corrections are folded in the rate: rate * m / (1 - b1^t) / (sqrt(v / (1 - b2^t)) + eps)
+            double c2 = Math.sqrt(1 - Math.pow(b2, step));
+            double stepRate = rate * c2 / (1 - Math.pow(b1, step));
+            double stepEps = eps * c2;
+            double decay = this == ADAMW ? 1 - rate * config.weightDecay : 1;
+            for (int i = 0; i < n; i++) {
+                double g = dw[i] / dh;
+                double mi = b1 * m[i] + (1 - b1) * g;
+                double vi = b2 * v[i] + (1 - b2) * g * g;
+                m[i] = mi;
+                v[i] = vi;
+                w[i] = w[i] * decay - stepRate * mi / (Math.sqrt(vi) + stepEps);
+                dw[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * float version of update(double[] ...), the state is in float as well
+     */
+    public void update(float[] w, float[] dw, float[] m, float[] v, int n, float dh, Config config, long step) {
+        float rate = (float) config.rate;
+        float mu = (float) config.momentum;
+        switch (this) {
+        case SGD:
+            for (int i = 0; i < n; i++) {
+                w[i] -= (dw[i] / dh) * rate;
+                dw[i] = 0;
+            }
+            break;
+        case MOMENTUM:
+            for (int i = 0; i < n; i++) {
+                float mi = mu * m[i] + dw[i] / dh;
+                m[i] = mi;
+                w[i] -= rate * mi;
+                dw[i] = 0;
+            }
+            break;
+        case NESTEROV:
+            for (int i = 0; i < n; i++) {
+                float g = dw[i] / dh;
+                float mi = mu * m[i] + g;
+                m[i] = mi;
+                w[i] -= rate * (g + mu * mi);
+                dw[i] = 0;
+            }
+            break;
+        default:
+            float b1 = (float) config.beta1;
+            float b2 = (float) config.beta2;
+            double c2 = Math.sqrt(1 - Math.pow(config.beta2, step));
+            float stepRate = (float) (config.rate * c2 / (1 - Math.pow(config.beta1, step)));
+            float stepEps = (float) (config.epsilon * c2);
+            float decay = this == ADAMW ? (float) (1 - config.rate * config.weightDecay) : 1;
+            for (int i = 0; i < n; i++) {
+                float g = dw[i] / dh;
+                float mi = b1 * m[i] + (1 - b1) * g;
+                float vi = b2 * v[i] + (1 - b2) * g * g;
+                m[i] = mi;
+                v[i] = vi;
+                w[i] = w[i] * decay - stepRate * mi / ((float) Math.sqrt(vi) + stepEps);
+                dw[i] = 0;
+            }
+        }
+    }
+}
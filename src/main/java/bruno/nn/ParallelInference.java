@@ -0,0 +1,120 @@
+package bruno.nn;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Low latency inference of a single sample: the neurons of each layer are split in contiguous blocks, which are computed
+ * in parallel by a persistent ForkJoinPool. All blocks of a layer must be done before the next layer starts.
+ *
+ * Layers with fewer than minParallelWork weights are computed by the calling thread, so that small networks (e.g. Iris) don't pay
+ * for the synchronization.
+ *
+ * Like InferenceModel, instances can be used from several threads, each call using its own Scratch.
+ */
+public class ParallelInference implements Predictor, AutoCloseable {
+
+    /**
+     * default number of weights (i.e. multiply-adds) of a layer under which the layer is computed serially
+     */
+    static final int MIN_PARALLEL_WORK = 64 * 1024;
+
+    final InferenceModel model;
+    final ForkJoinPool pool;
+    /**
+     * number of blocks per layer
+     */
+    final int blocks;
+    final int minParallelWork;
+    final int[] layerSizes;
+
+    private final ThreadLocal<InferenceModel.Scratch> scratches;
+
+    public ParallelInference(InferenceModel model, int threads) {
+        this(model, threads, MIN_PARALLEL_WORK);
+    }
+
+    /**
+     * @param threads size of the pool
+     * @param minParallelWork layers with fewer weights are computed serially
+     */
+    public ParallelInference(InferenceModel model, int threads, int minParallelWork) {
+        this.model = model;
+        this.pool = new ForkJoinPool(threads);
+        this.blocks = threads;
+        this.minParallelWork = minParallelWork;
+        this.layerSizes = model.getLayerSizes();
+        this.scratches = ThreadLocal.withInitial(model::newScratch);
+    }
+
+    /**
+     * computes neurons [from;to[ of a layer, splitting the range in 2 until it is small enough
+     */
+    class LayerBlock extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int l;
+        final double[] li;
+        final double[] lo;
+        final int from;
+        final int to;
+        final int blockSize;
+
+        LayerBlock(int l, double[] li, double[] lo, int from, int to, int blockSize) {
+            this.l = l;
+            this.li = li;
+            this.lo = lo;
+            this.from = from;
+            this.to = to;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= blockSize) {
+                model.computeLayer(l, li, lo, from, to);
+            } else {
+                int middle = from + Math.max(1, (to - from) / blockSize / 2) * blockSize;
+                invokeAll(new LayerBlock(l, li, lo, from, middle, blockSize), new LayerBlock(l, li, lo, middle, to, blockSize));
+            }
+        }
+    }
+
+    /**
+     * compute the outputs of a single sample
+     * @param output receives the activations of the output layer
+     */
+    public void predictInto(double[] input, double[] output, InferenceModel.Scratch scratch) {
+        double[][] ls = scratch.ls;
+        System.arraycopy(input, 0, ls[0], 0, layerSizes[0]);
+        for (int l = 1; l < layerSizes.length; l++) {
+            int nos = layerSizes[l];
+            if (blocks <= 1 || (long) nos * layerSizes[l - 1] < minParallelWork) {
+                model.computeLayer(l, ls[l - 1], ls[l], 0, nos);
+            } else {
+                // pool.invoke() returns when all blocks are done, which is the barrier between layers
+                int blockSize = (nos + blocks - 1) / blocks;
+                pool.invoke(new LayerBlock(l, ls[l - 1], ls[l], 0, nos, blockSize));
+            }
+            model.finishLayer(l, ls[l]);
+        }
+        if (output != ls[ls.length - 1])
+            System.arraycopy(ls[ls.length - 1], 0, output, 0, output.length);
+    }
+
+    /**
+     * @return the output layer of the thread's scratch, i.e. it is overridden by the next call from the same thread
+     */
+    @Override
+    public double[] computeFwd(double[] inputs) {
+        InferenceModel.Scratch scratch = scratches.get();
+        double[][] ls = scratch.ls;
+        predictInto(inputs, ls[ls.length - 1], scratch);
+        return ls[ls.length - 1];
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
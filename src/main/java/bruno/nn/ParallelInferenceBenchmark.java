@@ -0,0 +1,56 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the single sample latency of InferenceModel (serial) and ParallelInference,
+ * for the Iris, MNIST and a wide network.
+ *
+ * args: number of threads
+ */
+public class ParallelInferenceBenchmark {
+
+    /**
+     * @return latencies percentiles 50 and 99 in micro seconds
+     */
+    static double[] latencies(Predictor predictor, double[][] inputs, int runs) {
+        long[] times = new long[runs];
+        for (int r = 0; r < runs; r++) {
+            long start = System.nanoTime();
+            predictor.computeFwd(inputs[r % inputs.length]);
+            times[r] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return new double[] { times[runs / 2] / 1000.0, times[runs * 99 / 100] / 1000.0 };
+    }
+
+    public static void main(String... args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Random random = new Random(0);
+        for (int[] layerSizes : new int[][] { { 4, 12, 3 }, { 784, 512, 10 }, { 784, 2048, 2048, 10 } }) {
+            NeuralNet.Config config = new NeuralNet.Config();
+            config.layer_sizes = layerSizes;
+            InferenceModel model = InferenceModel.of(new NeuralNet(config));
+            double[][] inputs = new double[100][layerSizes[0]];
+            for (double[] input : inputs)
+                DataHelper.fill(random::nextDouble, input);
+
+            long weights = 0;
+            for (int l = 1; l < layerSizes.length; l++)
+                weights += (long) layerSizes[l] * layerSizes[l - 1];
+            // about the same duration for each network
+            int runs = (int) Math.max(200, Math.min(5000, 500_000_000L / weights));
+
+            try (ParallelInference parallel = new ParallelInference(model, threads)) {
+                // warm up
+                latencies(model, inputs, runs);
+                latencies(parallel, inputs, runs);
+                double[] serial = latencies(model, inputs, runs);
+                double[] par = latencies(parallel, inputs, runs);
+                NeuralNet.log(Arrays.toString(layerSizes) + " threads:" + threads
+                        + String.format(" serial p50:%.1fus p99:%.1fus parallel p50:%.1fus p99:%.1fus", serial[0], serial[1], par[0], par[1]));
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streaming inference where each stage (one or several consecutive layers) runs in its own thread,
+ * so that several samples are in flight at the same time, each one in a different layer.
+ *
+ * Stages are connected by bounded single-producer/single-consumer ring buffers, whose slots are
+ * pre-allocated activation vectors: nothing is allocated per sample.
+ *
+ * Usage: one thread calls submit(), another thread calls complete(). Samples complete in submission order.
+ * submit() blocks when the first ring is full (backpressure), until complete() makes room: a single thread submitting more
+ * samples than the pipeline holds before completing them would block forever. A single thread must use trySubmit() instead,
+ * and drain the finished samples with tryComplete() when it returns -1 @see PipelineEngineBenchmark
+ *
+ * stageUtilization() tells which stage is the bottleneck: it is the one close to 1.0, the others are waiting for it.
+ */
+public class PipelineEngine implements AutoCloseable {
+
+    /**
+     * bounded ring of pre-allocated activation vectors, for exactly one producer thread and one consumer thread
+     */
+    static final class SpscRing {
+        final double[][] slots;
+        /**
+         * sample id of each slot
+         */
+        final long[] tags;
+        final int mask;
+        /**
+         * next slot to read, only incremented by the consumer
+         */
+        final AtomicLong head = new AtomicLong();
+        /**
+         * next slot to write, only incremented by the producer
+         */
+        final AtomicLong tail = new AtomicLong();
+
+        /**
+         * @param capacity rounded up to a power of 2
+         * @param width size of the activation vectors
+         */
+        SpscRing(int capacity, int width) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            slots = new double[size][width];
+            tags = new long[size];
+            mask = size - 1;
+        }
+
+        // -- producer side
+
+        boolean canWrite() {
+            return tail.get() - head.get() < slots.length;
+        }
+
+        double[] writeSlot() {
+            return slots[(int) tail.get() & mask];
+        }
+
+        void publish(long tag) {
+            long t = tail.get();
+            tags[(int) t & mask] = tag;
+            // ordered write: the consumer sees the slot content before the new tail
+            tail.lazySet(t + 1);
+        }
+
+        // -- consumer side
+
+        boolean canRead() {
+            return head.get() < tail.get();
+        }
+
+        double[] readSlot() {
+            return slots[(int) head.get() & mask];
+        }
+
+        long readTag() {
+            return tags[(int) head.get() & mask];
+        }
+
+        void release() {
+            head.lazySet(head.get() + 1);
+        }
+    }
+
+    /**
+     * spin, then yield, then sleep a bit: waiting threads do not burn a core forever
+     */
+    static void idle(int spins) {
+        if (spins < 100)
+            Thread.onSpinWait();
+        else if (spins < 200)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(10_000);
+    }
+
+    /**
+     * a thread computing layers [firstLayer;lastLayer]
+     */
+    class Stage extends Thread {
+        final int firstLayer;
+        final int lastLayer;
+        final SpscRing in;
+        final SpscRing out;
+        /**
+         * activations of the layers before lastLayer
+         */
+        final double[][] ls;
+        /**
+         * time spent computing, in nanos
+         */
+        volatile long busyNanos;
+
+        Stage(int index, int firstLayer, int lastLayer, SpscRing in, SpscRing out) {
+            super("pipeline-stage-" + index);
+            setDaemon(true);
+            this.firstLayer = firstLayer;
+            this.lastLayer = lastLayer;
+            this.in = in;
+            this.out = out;
+            this.ls = new double[lastLayer + 1][];
+            for (int l = firstLayer; l < lastLayer; l++)
+                ls[l] = new double[layerSizes[l]];
+        }
+
+        @Override
+        public void run() {
+            try {
+                compute();
+            } catch (RuntimeException | Error e) {
+                // the other threads would wait forever for this stage, complete() and submit() rethrow it
+                failure = e;
+                running = false;
+            }
+        }
+
+        void compute() {
+            int spins = 0;
+            while (running) {
+                if (!in.canRead() || !out.canWrite()) {
+                    idle(spins++);
+                    continue;
+                }
+                spins = 0;
+                long start = System.nanoTime();
+                double[] li = in.readSlot();
+                for (int l = firstLayer; l <= lastLayer; l++) {
+                    double[] lo = (l == lastLayer) ? out.writeSlot() : ls[l];
+                    model.computeLayer(l, li, lo, 0, layerSizes[l]);
+                    model.finishLayer(l, lo);
+                    li = lo;
+                }
+                out.publish(in.readTag());
+                in.release();
+                busyNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    final InferenceModel model;
+    final int[] layerSizes;
+    final SpscRing[] rings;
+    final Stage[] stages;
+    final long startNanos;
+    volatile boolean running = true;
+    /**
+     * what a stage threw, the pipeline is then stopped
+     */
+    volatile Throwable failure;
+    /**
+     * id of the next submitted sample
+     */
+    long submitted;
+
+    /**
+     * one stage per layer
+     */
+    public PipelineEngine(InferenceModel model, int capacity) {
+        this(model, capacity, ones(model.getLayerSizes().length - 1));
+    }
+
+    static int[] ones(int n) {
+        int[] retVal = new int[n];
+        Arrays.fill(retVal, 1);
+        return retVal;
+    }
+
+    /**
+     * @param capacity number of activation vectors between 2 stages
+     * @param layersPerStage number of consecutive layers computed by each stage, at least 1, must sum to the number of layers - 1
+     */
+    public PipelineEngine(InferenceModel model, int capacity, int[] layersPerStage) {
+        this.model = model;
+        this.layerSizes = model.getLayerSizes();
+        for (int n : layersPerStage)
+            if (n < 1)
+                throw new IllegalArgumentException("layersPerStage " + Arrays.toString(layersPerStage) + " has a stage without layers");
+        if (Arrays.stream(layersPerStage).sum() != layerSizes.length - 1)
+            throw new IllegalArgumentException("layersPerStage " + Arrays.toString(layersPerStage) + " does not match " + Arrays.toString(layerSizes));
+
+        rings = new SpscRing[layersPerStage.length + 1];
+        stages = new Stage[layersPerStage.length];
+        rings[0] = new SpscRing(capacity, layerSizes[0]);
+        int layer = 1;
+        for (int s = 0; s < layersPerStage.length; s++) {
+            int lastLayer = layer + layersPerStage[s] - 1;
+            rings[s + 1] = new SpscRing(capacity, layerSizes[lastLayer]);
+            stages[s] = new Stage(s, layer, lastLayer, rings[s], rings[s + 1]);
+            layer = lastLayer + 1;
+        }
+        startNanos = System.nanoTime();
+        for (Stage stage : stages)
+            stage.start();
+    }
+
+    /**
+     * enqueue a sample, unless the pipeline is full
+     * @return the id of the sample, -1 if the pipeline is full
+     */
+    public long trySubmit(double[] input) {
+        SpscRing ring = rings[0];
+        if (!ring.canWrite())
+            return -1;
+        System.arraycopy(input, 0, ring.writeSlot(), 0, layerSizes[0]);
+        ring.publish(submitted);
+        return submitted++;
+    }
+
+    /**
+     * enqueue a sample, waits while the pipeline is full
+     * @return the id of the sample
+     */
+    public long submit(double[] input) {
+        int spins = 0;
+        long id;
+        while ((id = trySubmit(input)) < 0) {
+            checkFailure();
+            idle(spins++);
+        }
+        return id;
+    }
+
+    /**
+     * dequeue the outputs of the oldest sample, if it is done
+     * @param output receives the activations of the output layer
+     * @return the id of the sample, -1 if no sample is done
+     */
+    public long tryComplete(double[] output) {
+        SpscRing ring = rings[rings.length - 1];
+        if (!ring.canRead())
+            return -1;
+        System.arraycopy(ring.readSlot(), 0, output, 0, output.length);
+        long id = ring.readTag();
+        ring.release();
+        return id;
+    }
+
+    /**
+     * dequeue the outputs of the oldest sample, waits until it is done
+     * @return the id of the sample
+     * @throws RuntimeException if a stage failed, with what it threw as cause
+     */
+    public long complete(double[] output) {
+        int spins = 0;
+        long id;
+        while ((id = tryComplete(output)) < 0) {
+            checkFailure();
+            idle(spins++);
+        }
+        return id;
+    }
+
+    /**
+     * rethrow what a stage threw, instead of waiting for a sample which will never come
+     */
+    void checkFailure() {
+        if (failure != null)
+            throw new RuntimeException("pipeline stage failed", failure);
+    }
+
+    /**
+     * @return for each stage, the ratio of time spent computing since the engine started
+     */
+    public double[] stageUtilization() {
+        double elapsed = System.nanoTime() - startNanos;
+        double[] retVal = new double[stages.length];
+        for (int s = 0; s < stages.length; s++)
+            retVal[s] = stages[s].busyNanos / elapsed;
+        return retVal;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Stage stage : stages) {
+            try {
+                stage.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package bruno.nn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the throughput of a PipelineEngine (one stage per layer) with InferenceModel.predictInto() of one sample at a time,
+ * on a 784-512-512-10 network
+ */
+public class PipelineEngineBenchmark {
+
+    public static void main(String... args) {
+        NeuralNet.Config config = new NeuralNet.Config();
+        config.layer_sizes = new int[] { 784, 512, 512, 10 };
+        InferenceModel model = InferenceModel.of(new NeuralNet(config));
+        Random random = new Random(0);
+        double[][] inputs = new double[20000][784];
+        for (double[] input : inputs)
+            DataHelper.fill(random::nextDouble, input);
+        double[] output = new double[10];
+
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            InferenceModel.Scratch scratch = model.newScratch();
+            for (double[] input : inputs)
+                model.predictInto(input, output, scratch);
+            double serial = inputs.length * 1e9 / (System.nanoTime() - start);
+
+            try (PipelineEngine engine = new PipelineEngine(model, 64)) {
+                start = System.nanoTime();
+                int done = 0;
+                for (double[] input : inputs) {
+                    // submit and complete from the same thread: when the pipeline is full, drain the outputs
+                    // (a blocking submit() would wait forever for a full output ring)
+                    while (engine.trySubmit(input) < 0) {
+                        if (engine.tryComplete(output) >= 0)
+                            done++;
+                    }
+                }
+                while (done < inputs.length) {
+                    engine.complete(output);
+                    done++;
+                }
+                double pipelined = inputs.length * 1e9 / (System.nanoTime() - start);
+                NeuralNet.log(String.format("serial:%.0f samples/s pipelined:%.0f samples/s stage utilization:", serial, pipelined)
+                        + Arrays.toString(engine.stageUtilization()));
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package bruno.nn;
+
+import bruno.nn.DataHelper.SparseInput;
+
+/**
+ * Anything that computes outputs from inputs, e.g. for TrainingHelper.computeErrorAcc()
+ */
+public interface Predictor {
+
+    /**
+     * compute the full network in fwd pass
+     * @return the activations of the output layer
+     */
+    double[] computeFwd(double[] inputs);
+
+    /**
+     * same as computeFwd(inputs), sparse is the non zero values of inputs (or null) 
+     * and can be used to skip zero inputs in the first layer
+     */
+    default double[] computeFwd(double[] inputs, SparseInput sparse) {
+        return computeFwd(inputs);
+    }
+}
@@ -0,0 +1,72 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trains a network on MNIST (or on random clusters of the same shape when the MNIST files are not found),
+ * then compares accuracy, size, latency and throughput of the double model and of the int8 QuantizedModel
+ * args: directory of the MNIST files
+ */
+public class QuantizedModelBenchmark {
+
+    /**
+     * @return samples per second of computeFwd() in the calling thread
+     */
+    static double throughput(Predictor predictor, List<InAndOut> samples, int runs) {
+        long start = System.nanoTime();
+        for (int r = 0; r < runs; r++)
+            predictor.computeFwd(samples.get(r % samples.size()).input);
+        return runs * 1e9 / (System.nanoTime() - start);
+    }
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, 128, 10 };
+        config.rate = 0.01;
+        NeuralNet nn = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 3;
+        trainConfig.batches = 10;
+        trainConfig.rateDecay = 1;
+        trainConfig.computeBatch = 32;
+        TrainingHelper.train(train, List.of(), nn, trainConfig);
+
+        double[][] inputs = new double[test.size()][];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = test.get(i).input;
+        long doubleBytes = 0;
+        for (int l = 0; l < nn.layers - 1; l++)
+            doubleBytes += Double.BYTES * (long) (nn.ws[l].length + nn.bs[l].length);
+
+        for (boolean vectorKernels : new boolean[] { false, true }) {
+            config.vectorKernels = vectorKernels;
+            nn.kernels = Kernels.create(vectorKernels);
+            InferenceModel model = InferenceModel.of(nn);
+            QuantizedModel quantized = QuantizedModel.of(nn, train.subList(0, 1000));
+            double[] accDouble = TrainingHelper.computeErrorAcc(test, model);
+            double[] accInt8 = TrainingHelper.computeErrorAcc(test, quantized);
+
+            int runs = 20000;
+            for (int warmup = 0; warmup < 2; warmup++) {
+                double[] latDouble = ParallelInferenceBenchmark.latencies(model, inputs, runs);
+                double[] latInt8 = ParallelInferenceBenchmark.latencies(quantized, inputs, runs);
+                double tDouble = throughput(model, test, runs);
+                double tInt8 = throughput(quantized, test, runs);
+                if (warmup == 1) {
+                    NeuralNet.log(String.format("%s double: accuracy:%.4f error:%.5f size:%d bytes p50:%.1fus p99:%.1fus %.0f samples/s",
+                            nn.kernels, accDouble[1], accDouble[0], doubleBytes, latDouble[0], latDouble[1], tDouble));
+                    NeuralNet.log(String.format("%s int8:   accuracy:%.4f error:%.5f size:%d bytes p50:%.1fus p99:%.1fus %.0f samples/s",
+                            nn.kernels, accInt8[1], accInt8[0], quantized.sizeInBytes(), latInt8[0], latInt8[1], tInt8));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package bruno.nn;
+
+/**
+ * plain java loops, the JIT may or may not vectorize them
+ */
+public class ScalarKernels implements Kernels {
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+        double z = 0;
+        for (int i = 0; i < n; i++)
+            z += a[aOff + i] * b[bOff + i];
+        return z;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    @Override
+    public void descend(double[] w, double[] dw, int n, double dh, double rate) {
+        for (int i = 0; i < n; i++) {
+            w[i] -= (dw[i] / dh) * rate;
+            dw[i] = 0;
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        // 4 independent sums, so that the additions are not waiting for each other
+        float z0 = 0, z1 = 0, z2 = 0, z3 = 0;
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            z0 += a[aOff + i] * b[bOff + i];
+            z1 += a[aOff + i + 1] * b[bOff + i + 1];
+            z2 += a[aOff + i + 2] * b[bOff + i + 2];
+            z3 += a[aOff + i + 3] * b[bOff + i + 3];
+        }
+        for (; i < n; i++)
+            z0 += a[aOff + i] * b[bOff + i];
+        return (z0 + z1) + (z2 + z3);
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    @Override
+    public void descend(float[] w, float[] dw, int n, float dh, float rate) {
+        for (int i = 0; i < n; i++) {
+            w[i] -= (dw[i] / dh) * rate;
+            dw[i] = 0;
+        }
+    }
+
+    /**
+     * measured on a 784-512-10 network: the sparse path is faster up to ~50% of non zero inputs
+     */
+    @Override
+    public double maxSparseDensity() {
+        return 0.5;
+    }
+
+    /**
+     * |a * b| <= 2^14, so the int accumulator can not overflow for n < 2^17
+     */
+    @Override
+    public int dot(byte[] a, int aOff, byte[] b, int bOff, int n) {
+        int acc = 0;
+        for (int i = 0; i < n; i++)
+            acc += a[aOff + i] * b[bOff + i];
+        return acc;
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,66 @@
+package bruno.nn;
+
+import java.util.List;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Time to 95% test accuracy of a 784-128-10 network with leaky relu everywhere and the squared error (the default),
+ * against the same network with a softmax output trained with the cross entropy error.
+ *
+ * Both are trained like Mnist.main(): each step is one update from a random subset of the training samples.
+ *
+ * args: directory of the MNIST files
+ */
+public class SoftmaxBenchmark {
+
+    static final double TARGET = 0.95;
+
+    static Config config(Activation output) {
+        Config config = new Config();
+        config.layer_sizes = new int[] { 784, 128, 10 };
+        config.rate = 0.05;
+        config.activations = new Activation[] { Activation.LEAKY_RELU, output };
+        return config;
+    }
+
+    /**
+     * @return steps and training ms until the test accuracy reaches TARGET (or maxSteps), and the last accuracy
+     */
+    static double[] timeToTarget(Config config, List<InAndOut> train, List<InAndOut> test, int maxSteps) {
+        NeuralNet nn = new NeuralNet(config);
+        TrainConfig trainConfig = new TrainConfig();
+        trainConfig.epochs = 1;
+        trainConfig.batches = 1;
+        trainConfig.rateDecay = 1;
+        trainConfig.reduceTrainingRatio = 0.05;
+        trainConfig.computeBatch = 32;
+        long nanos = 0;
+        double accuracy = 0;
+        int step = 0;
+        while (step < maxSteps && accuracy < TARGET) {
+            // a new subset for each step
+            trainConfig.seed = step++;
+            long start = System.nanoTime();
+            TrainingHelper.train(train, List.of(), nn, trainConfig);
+            nanos += System.nanoTime() - start;
+            accuracy = TrainingHelper.computeErrorAcc(test, nn)[1];
+        }
+        return new double[] { step, nanos / 1e6, accuracy };
+    }
+
+    public static void main(String... args) {
+        Mnist.Samples samples = Mnist.benchmarkSamples(args);
+        List<InAndOut> train = samples.train;
+        List<InAndOut> test = samples.test;
+
+        int maxSteps = 2000;
+        double[] squared = timeToTarget(config(Activation.LEAKY_RELU), train, test, maxSteps);
+        double[] softmax = timeToTarget(config(Activation.SOFTMAX), train, test, maxSteps);
+        NeuralNet.log(String.format("leaky relu output, squared error:  %4.0f steps %6.0fms accuracy:%.4f", squared[0], squared[1], squared[2]));
+        NeuralNet.log(String.format("softmax output, cross entropy:     %4.0f steps %6.0fms accuracy:%.4f speedup:%.1fx", softmax[0], softmax[1],
+                softmax[2], squared[1] / softmax[1]));
+    }
+}
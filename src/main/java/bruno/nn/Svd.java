@@ -0,0 +1,225 @@
+package bruno.nn;
+
+import java.util.Random;
+
+/**
+ * Truncated singular value decomposition of a row-major matrix: A[rows x cols] ~ U[rows x rank] * diag(s) * Vt[rank x cols]
+ *
+ * Randomized (Halko, Martinsson, Tropp): the range of A is found by multiplying A by random vectors, refined by a few power
+ * iterations, then the small projection of A onto that range is decomposed with the Jacobi eigenvalue algorithm.
+ * Only matrix products of MatrixHelper are used on the large matrix.
+ *
+ * @see LowRankModel
+ */
+public class Svd {
+
+    /**
+     * extra random vectors, the range they find is more accurate for the top singular vectors
+     */
+    static final int OVERSAMPLING = 10;
+    /**
+     * number of power iterations, needed when the singular values decay slowly (as in trained weights)
+     */
+    static final int POWER_ITERATIONS = 2;
+
+    final int rows;
+    final int cols;
+    final int rank;
+    /**
+     * left singular vectors, [rows x rank] row-major
+     */
+    final double[] u;
+    /**
+     * singular values, decreasing
+     */
+    final double[] s;
+    /**
+     * right singular vectors, one per row: [rank x cols] row-major
+     */
+    final double[] vt;
+
+    Svd(int rows, int cols, int rank, double[] u, double[] s, double[] vt) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rank = rank;
+        this.u = u;
+        this.s = s;
+        this.vt = vt;
+    }
+
+    /**
+     * the rank first singular values and vectors of a[rows x cols]
+     */
+    public static Svd truncated(double[] a, int rows, int cols, int rank, long seed) {
+        int k = Math.min(rank + OVERSAMPLING, Math.min(rows, cols));
+        rank = Math.min(rank, k);
+
+        // the basis vectors are kept as rows: qt[k x rows] is Q^T
+        Random random = new Random(seed);
+        double[] omegat = new double[k * cols];
+        DataHelper.fill(random::nextGaussian, omegat);
+        double[] qt = new double[k * rows];
+        // Y^T = Omega^T * A^T
+        MatrixHelper.multiplyABt(omegat, 0, a, 0, qt, 0, k, rows, cols);
+        orthonormalizeRows(qt, k, rows);
+        double[] zt = new double[k * cols];
+        for (int i = 0; i < POWER_ITERATIONS; i++) {
+            // Z^T = Q^T * A, then Y^T = Z^T * A^T
+            DataHelper.zeros(zt);
+            MatrixHelper.multiplyAB(qt, 0, a, 0, zt, 0, k, rows, cols);
+            orthonormalizeRows(zt, k, cols);
+            DataHelper.zeros(qt);
+            MatrixHelper.multiplyABt(zt, 0, a, 0, qt, 0, k, rows, cols);
+            orthonormalizeRows(qt, k, rows);
+        }
+
+        // B = Q^T * A [k x cols], then B * B^T = E * diag(s^2) * E^T
+        double[] b = new double[k * cols];
+        MatrixHelper.multiplyAB(qt, 0, a, 0, b, 0, k, rows, cols);
+        double[] g = new double[k * k];
+        MatrixHelper.multiplyABt(b, 0, b, 0, g, 0, k, k, cols);
+        double[] e = new double[k * k];
+        double[] eigenvalues = jacobiEigen(g, e, k);
+
+        int[] order = new int[k];
+        for (int i = 0; i < k; i++)
+            order[i] = i;
+        // decreasing eigenvalues, k is small
+        for (int i = 0; i < k; i++)
+            for (int j = i + 1; j < k; j++)
+                if (eigenvalues[order[j]] > eigenvalues[order[i]]) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                }
+
+        double[] s = new double[rank];
+        double[] u = new double[rows * rank];
+        double[] vt = new double[rank * cols];
+        for (int r = 0; r < rank; r++) {
+            int c = order[r];
+            s[r] = Math.sqrt(Math.max(0, eigenvalues[c]));
+            // u = Q * e, vt = e^T * B / s
+            for (int m = 0; m < k; m++) {
+                double f = e[m * k + c];
+                for (int j = 0; j < rows; j++)
+                    u[j * rank + r] += f * qt[m * rows + j];
+                if (s[r] > 0)
+                    for (int i = 0; i < cols; i++)
+                        vt[r * cols + i] += f * b[m * cols + i] / s[r];
+            }
+        }
+        return new Svd(rows, cols, rank, u, s, vt);
+    }
+
+    /**
+     * modified Gram-Schmidt, twice, on the n rows of m[n x len]. A row which is a combination of the previous ones becomes 0
+     */
+    static void orthonormalizeRows(double[] m, int n, int len) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < i; j++) {
+                    double d = 0;
+                    for (int x = 0; x < len; x++)
+                        d += m[i * len + x] * m[j * len + x];
+                    for (int x = 0; x < len; x++)
+                        m[i * len + x] -= d * m[j * len + x];
+                }
+                double norm = 0;
+                for (int x = 0; x < len; x++)
+                    norm += m[i * len + x] * m[i * len + x];
+                norm = Math.sqrt(norm);
+                for (int x = 0; x < len; x++)
+                    m[i * len + x] = norm > 1e-12 ? m[i * len + x] / norm : 0;
+            }
+        }
+    }
+
+    /**
+     * cyclic Jacobi eigenvalue algorithm on a symmetric matrix, which is destroyed
+     * @param g [n x n] symmetric
+     * @param e receives the eigenvectors as columns, [n x n]
+     * @return the eigenvalues, unordered
+     */
+    static double[] jacobiEigen(double[] g, double[] e, int n) {
+        for (int i = 0; i < n; i++)
+            e[i * n + i] = 1;
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            double diagonal = 0;
+            for (int p = 0; p < n; p++) {
+                diagonal += g[p * n + p] * g[p * n + p];
+                for (int q = p + 1; q < n; q++)
+                    off += g[p * n + q] * g[p * n + q];
+            }
+            if (off <= 1e-30 * diagonal)
+                break;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double gpq = g[p * n + q];
+                    if (gpq == 0)
+                        continue;
+                    // rotation zeroing g[p][q]
+                    double theta = (g[q * n + q] - g[p * n + p]) / (2 * gpq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0)
+                        t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double sn = t * c;
+                    for (int x = 0; x < n; x++) {
+                        double gxp = g[x * n + p];
+                        double gxq = g[x * n + q];
+                        g[x * n + p] = c * gxp - sn * gxq;
+                        g[x * n + q] = sn * gxp + c * gxq;
+                    }
+                    for (int x = 0; x < n; x++) {
+                        double gpx = g[p * n + x];
+                        double gqx = g[q * n + x];
+                        g[p * n + x] = c * gpx - sn * gqx;
+                        g[q * n + x] = sn * gpx + c * gqx;
+                    }
+                    for (int x = 0; x < n; x++) {
+                        double exp = e[x * n + p];
+                        double exq = e[x * n + q];
+                        e[x * n + p] = c * exp - sn * exq;
+                        e[x * n + q] = sn * exp + c * exq;
+                    }
+                }
+            }
+        }
+        double[] eigenvalues = new double[n];
+        for (int i = 0; i < n; i++)
+            eigenvalues[i] = g[i * n + i];
+        return eigenvalues;
+    }
+
+    /**
+     * U[rows x r] * diag(s) and Vt[r x cols] for the r <= rank first singular values: the 2 factors of the best rank r approximation
+     * @return { left factor, right factor }
+     */
+    public double[][] factors(int r) {
+        double[] left = new double[rows * r];
+        double[] right = new double[r * cols];
+        for (int j = 0; j < rows; j++)
+            for (int i = 0; i < r; i++)
+                left[j * r + i] = u[j * rank + i] * s[i];
+        System.arraycopy(vt, 0, right, 0, r * cols);
+        return new double[][] { left, right };
+    }
+
+    /**
+     * relative Frobenius error of the rank r approximation of a
+     */
+    public double relativeError(double[] a, int r) {
+        double[][] f = factors(r);
+        double[] approx = new double[rows * cols];
+        MatrixHelper.multiplyAB(f[0], 0, f[1], 0, approx, 0, rows, r, cols);
+        double err = 0;
+        double norm = 0;
+        for (int i = 0; i < a.length; i++) {
+            err += (a[i] - approx[i]) * (a[i] - approx[i]);
+            norm += a[i] * a[i];
+        }
+        return Math.sqrt(err / norm);
+    }
+}
@@ -0,0 +1,39 @@
+package bruno.nn;
+
+import java.util.Random;
+
+/**
+ * Checks the Svd decomposition of a random matrix of known singular values: the decomposition at the full rank of the matrix
+ * must reconstruct it within TOLERANCE
+ */
+public class SvdCheck {
+
+    /**
+     * max relative error of the full rank reconstruction
+     */
+    static final double TOLERANCE = 1e-6;
+
+    public static void main(String... args) {
+        int rows = 120;
+        int cols = 200;
+        Random random = new Random(1);
+        int rank = 30;
+        // A = sum of s_i * x_i * y_i^T with s_i = 2^-i
+        double[] a = new double[rows * cols];
+        for (int i = 0; i < rank; i++) {
+            double[] x = new double[rows];
+            double[] y = new double[cols];
+            DataHelper.fill(random::nextGaussian, x);
+            DataHelper.fill(random::nextGaussian, y);
+            for (int j = 0; j < rows; j++)
+                for (int k = 0; k < cols; k++)
+                    a[j * cols + k] += Math.pow(0.5, i) * x[j] * y[k];
+        }
+        Svd svd = Svd.truncated(a, rows, cols, rank, 0);
+        for (int r : new int[] { 1, 5, 10, 20, rank })
+            NeuralNet.log("rank:" + r + " s:" + svd.s[r - 1] + " relative error:" + svd.relativeError(a, r));
+        double error = svd.relativeError(a, rank);
+        if (!(error <= TOLERANCE))
+            throw new IllegalStateException("relative error at rank " + rank + ": " + error + " > " + TOLERANCE);
+    }
+}
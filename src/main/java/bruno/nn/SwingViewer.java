@@ -394,7 +394,8 @@ public class SwingViewer {
             //            JPanel center = new JPanel(new BorderLayout());
             //            panel.add(center, BorderLayout.CENTER);
 
-            weightsd = new ArrayPanel("dws[" + (l - 1) + "][0]", nn.dws[l - 1][0], dims.get(l - 1));
+            weightsd = new ArrayPanel("dws[" + (l - 1) + "][0]", nn.dws[l - 1], dims.get(l - 1));
+            weightsd.setNewModel(new ModelConfig(nn.dws[l - 1], -1, 0, nn.config.layer_sizes[l - 1]));
             //            weightsd.setOnHover(x -> {
             //                if (x != -1 && i != -1)
             //                    label.setText("dws[" + (l - 1) + "][" + i + "][" + x + "]:" + nn.dws[l - 1][i][x]);
@@ -457,7 +458,8 @@ public class SwingViewer {
             //            JPanel center = new JPanel(new BorderLayout());
             //            panel.add(center, BorderLayout.CENTER);
 
-            weights = new ArrayPanel("ws[" + (l - 1) + "][0]", nn.ws[l - 1][0], dims.get(l - 1));
+            weights = new ArrayPanel("ws[" + (l - 1) + "][0]", nn.ws[l - 1], dims.get(l - 1));
+            weights.setNewModel(new ModelConfig(nn.ws[l - 1], -1, 0, nn.config.layer_sizes[l - 1]));
             //            weights.setOnHover(x -> {
             //                if (x != -1 && i != -1)
             //                    label.setText("ws[" + (l - 1) + "][" + i + "][" + x + "]:" + nn.ws[l - 1][i][x]);
@@ -479,10 +481,13 @@ public class SwingViewer {
 
             fwd.addArrayPanel(bias);//, BorderLayout.EAST);
 
-            zs = new ArrayPanel("zs[" + (l) + "]", nn.zs[l], dims.get(l));
-            zs.setOnSelected(this::selectNeuron);
+            // z is not kept with Config.signMasks
+            if (nn.zs[l] != null) {
+                zs = new ArrayPanel("zs[" + (l) + "]", nn.zs[l], dims.get(l));
+                zs.setOnSelected(this::selectNeuron);
 
-            fwd.addArrayPanel(zs);
+                fwd.addArrayPanel(zs);
+            }
 
             current = new ArrayPanel("a[" + (l) + "]", nn.ls[l], dims.get(l));
             current.setOnSelected(this::selectNeuron);
@@ -495,15 +500,16 @@ public class SwingViewer {
         }
 
         private void selectNeuron(int i) {
-
-            weights.setNewModel(new ModelConfig(nn.ws[l - 1][i], -1, 0, -1));
+            // weights are stored row-major, the row of neuron i is [i*nis;(i+1)*nis[
+            int nis = nn.config.layer_sizes[l - 1];
+            weights.setNewModel(new ModelConfig(nn.ws[l - 1], -1, i * nis, (i + 1) * nis));
             weights.setTitle("ws[" + (l - 1) + "][" + i + "]");
             bias.setNewModel(new ModelConfig(nn.bs[l - 1], -1, i, i + 1));
             bias.setTitle("bs[" + (l - 1) + "][" + i + "]");
             bias.setBorder(BorderFactory.createTitledBorder("bs[" + (l - 1) + "][" + i + "]"));
             weights.setBorder(BorderFactory.createTitledBorder("ws[" + (l - 1) + "][" + i + "]"));
 
-            weightsd.setNewModel(new ModelConfig(nn.dws[l - 1][i], -1, 0, -1));
+            weightsd.setNewModel(new ModelConfig(nn.dws[l - 1], -1, i * nis, (i + 1) * nis));
             weightsd.setTitle("dws[" + (l - 1) + "][" + i + "]");
             biasd.setNewModel(new ModelConfig(nn.dbs[l - 1], -1, i, i + 1));
             biasd.setTitle("dbs[" + (l - 1) + "][" + i + "]");
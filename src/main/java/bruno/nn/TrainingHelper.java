@@ -4,7 +4,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import bruno.nn.DataHelper.SparseInput;
 import bruno.nn.DataHelper.Stats;
 
 /**
@@ -21,6 +29,14 @@ public class TrainingHelper {
     static class InAndOut {
         double[] input;
         double[] expected;
+        /**
+         * the non zero values of input, only set when the input is sparse enough @see DataHelper#sparsify(List, double)
+         */
+        SparseInput sparse;
+        /**
+         * the output of the frozen layers of the network being trained, only set during TrainingHelper.train() @see TrainConfig#cacheFrozen
+         */
+        float[] frozenOutput;
 
         public InAndOut(double[] input, double[] expected) {
             super();
@@ -67,7 +83,7 @@ public class TrainingHelper {
     /**
      * compute error and accuracy over several  samples
      */
-    public static double[] computeErrorAcc(List<InAndOut> samples, NeuralNet nn) {
+    public static double[] computeErrorAcc(List<InAndOut> samples, Predictor nn) {
         double errorAcc = 0;
         int correctAcc = 0;
         for (InAndOut sample : samples) {
@@ -86,10 +102,10 @@ public class TrainingHelper {
     /**
      * compute error and accuracy over a single  samples
      */
-    private static double[] computeNetworkError(NeuralNet nn, InAndOut sample) {
+    private static double[] computeNetworkError(Predictor nn, InAndOut sample) {
         if (NeuralNet.debug)
             NeuralNet.log("input " + NeuralNet.s(sample.input));
-        double[] output = nn.computeFwd(sample.input);
+        double[] output = nn.computeFwd(sample.input, sample.sparse);
         if (NeuralNet.debug) {
             NeuralNet.log("network output " + NeuralNet.s(output));
             NeuralNet.log("      expected " + NeuralNet.s(sample.expected));
@@ -119,7 +135,91 @@ public class TrainingHelper {
          */
         int batches;
 
+        /**
+         * number of samples per update: each of the batches passes over the (shuffled) training subset is split in chunks of miniBatch
+         * samples, and the weights are updated after each chunk. 0 updates once per pass, from all the samples of the subset
+         */
+        int miniBatch = 0;
+
+        /**
+         * linear scaling rule: when > 0, Config.rate is the learning rate for updates from rateReferenceBatch samples,
+         * and the rate used during training is scaled by the number of samples per update / rateReferenceBatch. 0 disables
+         */
+        int rateReferenceBatch = 0;
+
         int epochs;
+
+        /**
+         * number of samples given at once to NeuralNet.computeFwdBwdBatch(), 1 means one sample at a time through computeFwdBwd()
+         * This does not change the gradient, only how fast it is computed
+         */
+        int computeBatch = 1;
+
+        /**
+         * samples with a lower ratio of non zero inputs go through the sparse fwd/bwd path, 0 disables the sparse path.
+         * -1 means the break-even of the network kernels @see Network#maxSparseDensity()
+         */
+        double maxSparseDensity = -1;
+
+        /**
+         * number of threads computing the derivatives of a batch, each thread gets a contiguous shard of the samples.
+         * The shards are then summed, so the gradient is the same as with 1 thread (up to the order of the additions)
+         */
+        int threads = 1;
+
+        /**
+         * asynchronous (Hogwild) training, only when threads > 1: each worker applies its derivatives to the shared weights
+         * every asyncBatch samples, without locks and without waiting for the other workers.
+         * The gradient of a sample may then be computed with weights that are being updated by other workers.
+         */
+        boolean async = false;
+
+        /**
+         * number of samples accumulated by a worker before updating the shared weights, in async mode
+         */
+        int asyncBatch = 1;
+
+        /**
+         * in async mode, a worker which has processed more than maxStaleness samples more than the slowest worker waits,
+         * this bounds how old the weights seen by the slowest worker can be. 0 means no limit
+         */
+        int maxStaleness = 0;
+
+        /**
+         * the derivatives are summed along a fixed tree of reduceChunks chunks, so that the weights are bit-identical
+         * whatever the number of threads @see TreeReduction
+         */
+        boolean deterministic = false;
+
+        /**
+         * number of chunks of samples in deterministic mode, rounded up to a power of 2.
+         * It must not change between runs that should be reproducible, and limits the number of useful threads
+         */
+        int reduceChunks = 64;
+
+        /**
+         * iterative magnitude pruning: fraction of the weights of the hidden layers which are 0 at the end of the training,
+         * 0 disables pruning @see Network#prune(double). Frozen layers are not pruned, so their cached output stays valid
+         */
+        double pruneSparsity = 0;
+
+        /**
+         * number of pruning steps to reach pruneSparsity, the sparsity grows linearly: step s prunes to pruneSparsity * s / pruneSteps
+         */
+        int pruneSteps = 1;
+
+        /**
+         * number of epochs between pruning steps, i.e. the network is trained pruneEvery epochs before the first step,
+         * and fine-tuned pruneEvery epochs after each step (the last step is followed by the remaining epochs)
+         */
+        int pruneEvery = 1;
+
+        /**
+         * when the network has leading frozen layers, their output is computed once per training sample (in float),
+         * and the fwd/bwd passes of all epochs start from it. The samples then go one at a time through computeFwdBwdFrozen()
+         * @see NeuralNet.Config#frozen
+         */
+        boolean cacheFrozen = true;
     }
 
     /**
@@ -129,7 +229,7 @@ public class TrainingHelper {
      * @param nn
      * @param trainConfig
      */
-    public static List<InAndOut> train(List<InAndOut> data, double trainingRatio, NeuralNet nn, TrainConfig trainConfig) {
+    public static List<InAndOut> train(List<InAndOut> data, double trainingRatio, Network nn, TrainConfig trainConfig) {
         data = new ArrayList<TrainingHelper.InAndOut>(data);
         Random random = new Random(trainConfig.seed);
         Collections.shuffle(data, random);
@@ -142,51 +242,254 @@ public class TrainingHelper {
         return testData;
     }
 
+    /**
+     * accumulate the derivatives of all samples, computeBatch samples at a time
+     */
+    static void computeFwdBwdBatches(Network nn, List<InAndOut> samples, int computeBatch) {
+        double[][] inputs = new double[samples.size()][];
+        double[][] expecteds = new double[samples.size()][];
+        for (int i = 0; i < samples.size(); i++) {
+            inputs[i] = samples.get(i).input;
+            expecteds[i] = samples.get(i).expected;
+        }
+        for (int from = 0; from < inputs.length; from += computeBatch) {
+            int n = Math.min(computeBatch, inputs.length - from);
+            nn.computeFwdBwdBatch(inputs, expecteds, from, n);
+        }
+    }
+
+    /**
+     * accumulate the derivatives of all samples, either one at a time or computeBatch samples at a time
+     */
+    static void computeFwdBwd(Network nn, List<InAndOut> samples, int computeBatch) {
+        if (!samples.isEmpty() && samples.get(0).frozenOutput != null) {
+            for (InAndOut sample : samples)
+                nn.computeFwdBwdFrozen(sample.frozenOutput, sample.expected);
+        } else if (computeBatch > 1) {
+            computeFwdBwdBatches(nn, samples, computeBatch);
+        } else {
+            for (InAndOut sample : samples) {
+                if (NeuralNet.trace)
+                    NeuralNet.log("sample:" + sample);
+                nn.computeFwdBwd(sample.input, sample.sparse, sample.expected);
+            }
+        }
+    }
+
+    /**
+     * data parallel version of computeFwdBwd(): each worker accumulates the derivatives of a shard of the samples,
+     * then the derivatives of all workers are added to nn, each thread summing a part of the layers.
+     */
+    static void computeFwdBwdParallel(Network nn, Network[] workers, ExecutorService executor, List<InAndOut> samples, int computeBatch) {
+        int parts = workers.length;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < parts; t++) {
+            Network worker = workers[t];
+            List<InAndOut> shard = samples.subList(samples.size() * t / parts, samples.size() * (t + 1) / parts);
+            tasks.add(() -> {
+                worker.resetDws();
+                computeFwdBwd(worker, shard, computeBatch);
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+
+        // reduce: the workers are always added in the same order
+        tasks.clear();
+        for (int t = 0; t < parts; t++) {
+            int part = t;
+            tasks.add(() -> {
+                for (Network worker : workers)
+                    nn.addDws(worker, part, parts);
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * asynchronous version of computeFwdBwdParallel(): each worker goes through its shard and updates the shared weights
+     * every asyncBatch samples, the derivatives are never reduced into nn.
+     * @param updates number of samples applied to the weights, replaces nn.dh which is not used
+     */
+    static void computeFwdBwdAsync(Network[] workers, ExecutorService executor, List<InAndOut> samples, TrainConfig trainConfig, AtomicLong updates) {
+        int parts = workers.length;
+        // number of samples processed by each worker, for the staleness throttle
+        AtomicLongArray progress = new AtomicLongArray(parts);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < parts; t++) {
+            int worker = t;
+            List<InAndOut> shard = samples.subList(samples.size() * t / parts, samples.size() * (t + 1) / parts);
+            tasks.add(() -> {
+                Network nn = workers[worker];
+                for (int from = 0; from < shard.size(); from += trainConfig.asyncBatch) {
+                    if (trainConfig.maxStaleness > 0)
+                        throttle(progress, worker, trainConfig.maxStaleness);
+                    List<InAndOut> chunk = shard.subList(from, Math.min(shard.size(), from + trainConfig.asyncBatch));
+                    computeFwdBwd(nn, chunk, trainConfig.computeBatch);
+                    nn.applyDws();
+                    progress.addAndGet(worker, chunk.size());
+                    updates.addAndGet(chunk.size());
+                }
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * waits while worker is more than maxStaleness samples ahead of the slowest worker
+     */
+    static void throttle(AtomicLongArray progress, int worker, int maxStaleness) {
+        int spins = 0;
+        while (true) {
+            long slowest = Long.MAX_VALUE;
+            for (int t = 0; t < progress.length(); t++)
+                slowest = Math.min(slowest, progress.get(t));
+            if (progress.get(worker) - slowest <= maxStaleness)
+                return;
+            PipelineEngine.idle(spins++);
+        }
+    }
+
+    static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /**
      * runs a training session @see {@link TrainConfig}
+     * @param testData evaluated after each epoch, may be empty
      */
-    public static void train(List<InAndOut> trainData, List<InAndOut> testData, NeuralNet nn, TrainConfig trainConfig) {
+    public static void train(List<InAndOut> trainData, List<InAndOut> testData, Network nn, TrainConfig trainConfig) {
 
+        if (trainConfig.pruneSparsity > 0 && !nn.canPrune())
+            throw new IllegalArgumentException(nn.getClass().getSimpleName() + " can not be pruned, TrainConfig.pruneSparsity needs a NeuralNet without off heap layers");
         trainData = new ArrayList<TrainingHelper.InAndOut>(trainData);
         //nn.normalizeWs();
-        Random random = new Random(trainConfig.seed);
+        double maxSparseDensity = trainConfig.maxSparseDensity < 0 ? nn.maxSparseDensity() : trainConfig.maxSparseDensity;
+        double density = DataHelper.sparsify(trainData, maxSparseDensity);
+        DataHelper.sparsify(testData, maxSparseDensity);
+        if (NeuralNet.info)
+            NeuralNet.log("input density:" + density + " sparse path under:" + maxSparseDensity);
         int maxIdx = (int) Math.round(trainData.size() * trainConfig.reduceTrainingRatio);
+        Network[] workers = new Network[trainConfig.threads];
+        ExecutorService executor = null;
+        TreeReduction reduction = null;
+        if (trainConfig.deterministic) {
+            reduction = new TreeReduction(nn, trainConfig.reduceChunks, trainConfig.threads);
+        } else if (trainConfig.threads > 1) {
+            for (int t = 0; t < workers.length; t++)
+                workers[t] = nn.newWorker();
+        }
+        if (trainConfig.threads > 1)
+            executor = Executors.newFixedThreadPool(trainConfig.threads);
+        int updateSize = trainConfig.miniBatch > 0 ? Math.min(trainConfig.miniBatch, maxIdx) : maxIdx;
+        double rateScale = trainConfig.rateReferenceBatch > 0 && updateSize > 0 ? (double) updateSize / trainConfig.rateReferenceBatch : 1;
+        nn.getConfig().rate *= rateScale;
+        if (NeuralNet.info && rateScale != 1)
+            NeuralNet.log("learning rate scaled by " + rateScale + " to " + nn.getConfig().rate + " for updates of " + updateSize + " samples");
+        try {
+            if (trainConfig.cacheFrozen && nn.frozenLayers() > 0)
+                cacheFrozen(nn, trainData);
+            trainEpochs(trainData, testData, nn, trainConfig, maxIdx, workers, executor, reduction);
+        } finally {
+            nn.getConfig().rate /= rateScale;
+            if (executor != null)
+                executor.shutdown();
+            // the cache is only valid for nn
+            for (InAndOut sample : trainData)
+                sample.frozenOutput = null;
+        }
+    }
+
+    /**
+     * compute the output of the frozen layers of nn for all samples @see TrainConfig#cacheFrozen
+     */
+    static void cacheFrozen(Network nn, List<InAndOut> samples) {
+        long start = System.currentTimeMillis();
+        for (InAndOut sample : samples) {
+            double[] output = nn.computeFrozen(sample.input, sample.sparse);
+            sample.frozenOutput = new float[output.length];
+            for (int k = 0; k < output.length; k++)
+                sample.frozenOutput[k] = (float) output[k];
+        }
+        if (NeuralNet.info && !samples.isEmpty())
+            NeuralNet.log("cached the output of " + nn.frozenLayers() + " frozen layers: " + Float.BYTES * (long) samples.size()
+                    * samples.get(0).frozenOutput.length + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * the epochs of train(), the derivatives are computed by the workers when executor is not null, or by reduction if not null
+     */
+    static void trainEpochs(List<InAndOut> trainData, List<InAndOut> testData, Network nn, TrainConfig trainConfig, int maxIdx, Network[] workers,
+            ExecutorService executor, TreeReduction reduction) {
+        Random random = new Random(trainConfig.seed);
+        boolean async = trainConfig.async && executor != null && reduction == null;
+        AtomicLong updates = new AtomicLong();
         for (int epoch = 0; epoch < trainConfig.epochs; epoch++) {
             long startTime = System.currentTimeMillis();
+            if (trainConfig.pruneSparsity > 0 && epoch > 0 && epoch % trainConfig.pruneEvery == 0) {
+                int step = epoch / trainConfig.pruneEvery;
+                if (step <= trainConfig.pruneSteps)
+                    nn.prune(trainConfig.pruneSparsity * step / trainConfig.pruneSteps);
+            }
             if (maxIdx != trainData.size())
                 Collections.shuffle(trainData, random);
             List<InAndOut> subset = trainData.subList(0, maxIdx);
             if (NeuralNet.info)
-                NeuralNet.log("batches:" + trainConfig.batches);
+                NeuralNet.log("batches:" + trainConfig.batches + (trainConfig.miniBatch > 0 ? " mini-batch:" + trainConfig.miniBatch : ""));
+            int chunkSize = trainConfig.miniBatch > 0 ? trainConfig.miniBatch : Math.max(1, subset.size());
+            int steps = 0;
             for (int batch = 0; batch < trainConfig.batches; batch++) {
 
                 System.err.print(".");
-                for (InAndOut sample : subset) {
-                    if (NeuralNet.trace)
-                        NeuralNet.log("sample:" + sample);
-                    nn.computeFwdBwd(sample.input, sample.expected);
-
+                // the mini-batches of each pass are different
+                if (trainConfig.miniBatch > 0)
+                    Collections.shuffle(subset, random);
+                for (int from = 0; from < subset.size(); from += chunkSize) {
+                    List<InAndOut> chunk = subset.subList(from, Math.min(subset.size(), from + chunkSize));
+                    if (reduction != null)
+                        reduction.computeFwdBwd(nn, chunk, trainConfig.computeBatch, executor);
+                    else if (async)
+                        computeFwdBwdAsync(workers, executor, chunk, trainConfig, updates);
+                    else if (executor != null)
+                        computeFwdBwdParallel(nn, workers, executor, chunk, trainConfig.computeBatch);
+                    else
+                        computeFwdBwd(nn, chunk, trainConfig.computeBatch);
+                    nn.applyDws();
+                    steps++;
                 }
-                nn.applyDws();
-                nn.resetDws();
                 //nn.normalizeWs();
 
-                if (NeuralNet.debug) {
-                    for (int l = 0; l < nn.layers - 1; l++) {
-                        NeuralNet.log("dw[" + l + "] stats:" + new Stats(nn.ws[0]));
-                        NeuralNet.log("db[" + l + "] stats:" + new Stats(nn.bs[0]));
+                if (NeuralNet.debug && nn instanceof NeuralNet) {
+                    NeuralNet dnn = (NeuralNet) nn;
+                    for (int l = 0; l < dnn.layers - 1; l++) {
+                        NeuralNet.log("dw[" + l + "] stats:" + new Stats(dnn.ws[0]));
+                        NeuralNet.log("db[" + l + "] stats:" + new Stats(dnn.bs[0]));
 
                     }
                 }
             }
-            nn.config.rate *= trainConfig.rateDecay;
+            long trainTime = System.currentTimeMillis() - startTime;
+            nn.getConfig().rate *= trainConfig.rateDecay;
             if (NeuralNet.info)
-                NeuralNet.log("learning rate changed to " + nn.config.rate);
-            computeErrorAcc(testData, nn);
+                NeuralNet.log("learning rate changed to " + nn.getConfig().rate);
+            if (!testData.isEmpty())
+                computeErrorAcc(testData, nn);
             long endTime = System.currentTimeMillis();
             long deltaTime = endTime - startTime;
             if (NeuralNet.info)
-                NeuralNet.log("epoch " + epoch + " done in " + deltaTime + " ");
+                NeuralNet.log("epoch " + epoch + " done in " + deltaTime + " steps:" + steps + " samples/s:"
+                        + Math.round((double) trainConfig.batches * subset.size() * 1000 / Math.max(1, trainTime)) + " "
+                        + (async ? "async updates:" + updates.get() : ""));
         }
 
     }
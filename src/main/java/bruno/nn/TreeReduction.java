@@ -0,0 +1,135 @@
+package bruno.nn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Accumulates the derivatives of a batch in parallel, with a result which does not depend on the number of threads.
+ *
+ * The samples are split in a fixed number of chunks (the leaves), the derivatives of each chunk are accumulated sample by
+ * sample, then the chunks are summed pairwise along a binary tree whose shape only depends on the number of chunks.
+ * Threads compute whole aligned subtrees, so that every addition happens in the same order whatever the thread count:
+ * weights are bit-identical for 1, 2, 4 or 8 threads.
+ *
+ * A subtree is summed while its leaves are computed (like a binary counter), so a thread only keeps log2(leaves) partial sums.
+ *
+ * @see TrainConfig#deterministic
+ */
+public class TreeReduction {
+
+    /**
+     * number of chunks, a power of 2
+     */
+    final int leaves;
+    /**
+     * number of subtrees, a power of 2 >= the number of threads
+     */
+    final int subtrees;
+    /**
+     * for each subtree, networks sharing weights with the master, used as buffers for the partial sums
+     */
+    final List<ArrayDeque<Network>> buffers = new ArrayList<>();
+
+    /**
+     * @param chunks rounded up to a power of 2
+     */
+    public TreeReduction(Network nn, int chunks, int threads) {
+        this.leaves = ceilPow2(chunks);
+        this.subtrees = Math.min(leaves, ceilPow2(threads));
+        // per subtree: one partial sum per level, plus the leaf being computed
+        int depth = Integer.numberOfTrailingZeros(leaves / subtrees) + 2;
+        for (int s = 0; s < subtrees; s++) {
+            ArrayDeque<Network> free = new ArrayDeque<>();
+            for (int d = 0; d < depth; d++)
+                free.add(nn.newWorker());
+            buffers.add(free);
+        }
+    }
+
+    static int ceilPow2(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * accumulate the derivatives of all samples into nn, whose derivatives must be reset
+     * @param executor null to compute in the calling thread
+     */
+    public void computeFwdBwd(Network nn, List<InAndOut> samples, int computeBatch, ExecutorService executor) {
+        Network[] sums = new Network[subtrees];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = 0; s < subtrees; s++) {
+            int subtree = s;
+            tasks.add(() -> {
+                sums[subtree] = computeSubtree(subtree, samples, computeBatch);
+                return null;
+            });
+        }
+        run(tasks, executor);
+
+        // the top of the tree, each thread sums a part of the layers
+        int parts = executor == null ? 1 : subtrees;
+        tasks.clear();
+        for (int p = 0; p < parts; p++) {
+            int part = p;
+            tasks.add(() -> {
+                for (int step = 1; step < subtrees; step *= 2)
+                    for (int s = 0; s < subtrees; s += 2 * step)
+                        sums[s].addDws(sums[s + step], part, parts);
+                nn.addDws(sums[0], part, parts);
+                return null;
+            });
+        }
+        run(tasks, executor);
+
+        for (int s = 0; s < subtrees; s++)
+            buffers.get(s).add(sums[s]);
+    }
+
+    /**
+     * @return the sum of the leaves of the subtree, in a buffer taken from the subtree's free buffers
+     */
+    Network computeSubtree(int subtree, List<InAndOut> samples, int computeBatch) {
+        ArrayDeque<Network> free = buffers.get(subtree);
+        int size = leaves / subtrees;
+        // stack[level] is the sum of the last 2^level leaves, if not null
+        Network[] stack = new Network[Integer.numberOfTrailingZeros(size) + 1];
+        for (int leaf = subtree * size; leaf < (subtree + 1) * size; leaf++) {
+            Network node = free.remove();
+            node.resetDws();
+            List<InAndOut> chunk = samples.subList((int) ((long) samples.size() * leaf / leaves), (int) ((long) samples.size() * (leaf + 1) / leaves));
+            TrainingHelper.computeFwdBwd(node, chunk, computeBatch);
+            int level = 0;
+            while (stack[level] != null) {
+                stack[level].addDws(node, 0, 1);
+                free.add(node);
+                node = stack[level];
+                stack[level] = null;
+                level++;
+            }
+            stack[level] = node;
+        }
+        return stack[stack.length - 1];
+    }
+
+    static void run(List<Callable<Void>> tasks, ExecutorService executor) {
+        if (executor != null) {
+            TrainingHelper.invokeAll(executor, tasks);
+        } else {
+            try {
+                for (Callable<Void> task : tasks)
+                    task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package bruno.nn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import bruno.nn.NeuralNet.Config;
+import bruno.nn.TrainingHelper.InAndOut;
+import bruno.nn.TrainingHelper.TrainConfig;
+
+/**
+ * Trains Iris with 1, 2, 4 and 8 threads with TrainConfig.deterministic, and checks that the weights are bit-identical
+ * @see TreeReduction
+ */
+public class TreeReductionCheck {
+
+    public static void main(String... args) {
+        List<InAndOut> data;
+        try {
+            data = Iris.getIrisData();
+        } catch (IOException e) {
+            NeuralNet.log("iris.data not found, using random data with the same shape: " + e);
+            data = randomIris();
+        }
+
+        double[][] reference = null;
+        for (int threads : new int[] { 1, 2, 4, 8 }) {
+            Config config = new Config();
+            config.layer_sizes = new int[] { 4, 12, 3 };
+            config.rate = 0.1;
+            NeuralNet nn = new NeuralNet(config);
+
+            TrainConfig trainConfig = new TrainConfig();
+            trainConfig.epochs = 5;
+            trainConfig.rateDecay = 0.95;
+            trainConfig.batches = 20;
+            trainConfig.threads = threads;
+            trainConfig.deterministic = true;
+            TrainingHelper.train(data, 0.9, nn, trainConfig);
+
+            double[][] weights = new double[2 * (nn.layers - 1)][];
+            for (int l = 0; l < nn.layers - 1; l++) {
+                weights[2 * l] = nn.ws[l];
+                weights[2 * l + 1] = nn.bs[l];
+            }
+            if (reference == null)
+                reference = weights;
+            boolean identical = Arrays.deepEquals(reference, weights);
+            NeuralNet.log("threads:" + threads + " weights identical to 1 thread:" + identical);
+            if (!identical)
+                throw new IllegalStateException("weights differ with " + threads + " threads");
+        }
+    }
+
+    static List<InAndOut> randomIris() {
+        Random random = new Random(0);
+        List<InAndOut> data = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            int category = i % 3;
+            double[] input = new double[4];
+            for (int k = 0; k < 4; k++)
+                input[k] = random.nextGaussian() * 0.3 + (k + 1) * category * 0.25;
+            data.add(new InAndOut(input, DataHelper.toArgmax(3, category)));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,152 @@
+package bruno.nn;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * kernels written with the Java Vector API, the vector size is the widest supported by the cpu.
+ * 
+ * Requires --add-modules jdk.incubator.vector, both for compiling and running
+ * 
+ * Note that dot() sums in a different order than the scalar version, so results differ slightly
+ */
+public class VectorKernels implements Kernels {
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Float> FSPECIES = FloatVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Integer> ISPECIES = IntVector.SPECIES_PREFERRED;
+    /**
+     * as many bytes as ints in ISPECIES, null when the shape does not exist (ints narrower than 256 bits)
+     */
+    static final VectorSpecies<Byte> BSPECIES = ISPECIES.vectorBitSize() >= 256
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(ISPECIES.vectorBitSize() / 4))
+            : null;
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        double z = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++)
+            z += a[aOff + i] * b[bOff + i];
+        return z;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n) {
+        int i = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + i);
+            vy.add(vx.mul(alpha)).intoArray(y, yOff + i);
+        }
+        for (; i < n; i++)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    @Override
+    public void descend(double[] w, double[] dw, int n, double dh, double rate) {
+        int i = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector vw = DoubleVector.fromArray(SPECIES, w, i);
+            DoubleVector vdw = DoubleVector.fromArray(SPECIES, dw, i);
+            vw.sub(vdw.div(dh).mul(rate)).intoArray(w, i);
+            DoubleVector.zero(SPECIES).intoArray(dw, i);
+        }
+        for (; i < n; i++) {
+            w[i] -= (dw[i] / dh) * rate;
+            dw[i] = 0;
+        }
+    }
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        FloatVector acc = FloatVector.zero(FSPECIES);
+        int i = 0;
+        int upper = FSPECIES.loopBound(n);
+        for (; i < upper; i += FSPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FSPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(FSPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        float z = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++)
+            z += a[aOff + i] * b[bOff + i];
+        return z;
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+        int i = 0;
+        int upper = FSPECIES.loopBound(n);
+        for (; i < upper; i += FSPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(FSPECIES, x, xOff + i);
+            FloatVector vy = FloatVector.fromArray(FSPECIES, y, yOff + i);
+            vy.add(vx.mul(alpha)).intoArray(y, yOff + i);
+        }
+        for (; i < n; i++)
+            y[yOff + i] += alpha * x[xOff + i];
+    }
+
+    @Override
+    public void descend(float[] w, float[] dw, int n, float dh, float rate) {
+        int i = 0;
+        int upper = FSPECIES.loopBound(n);
+        for (; i < upper; i += FSPECIES.length()) {
+            FloatVector vw = FloatVector.fromArray(FSPECIES, w, i);
+            FloatVector vdw = FloatVector.fromArray(FSPECIES, dw, i);
+            vw.sub(vdw.div(dh).mul(rate)).intoArray(w, i);
+            FloatVector.zero(FSPECIES).intoArray(dw, i);
+        }
+        for (; i < n; i++) {
+            w[i] -= (dw[i] / dh) * rate;
+            dw[i] = 0;
+        }
+    }
+
+    @Override
+    public int dot(byte[] a, int aOff, byte[] b, int bOff, int n) {
+        int i = 0;
+        int acc = 0;
+        if (BSPECIES != null) {
+            // bytes are widened to ints, then multiplied and added
+            IntVector vacc = IntVector.zero(ISPECIES);
+            int upper = BSPECIES.loopBound(n);
+            for (; i < upper; i += BSPECIES.length()) {
+                IntVector va = (IntVector) ByteVector.fromArray(BSPECIES, a, aOff + i).convertShape(VectorOperators.B2I, ISPECIES, 0);
+                IntVector vb = (IntVector) ByteVector.fromArray(BSPECIES, b, bOff + i).convertShape(VectorOperators.B2I, ISPECIES, 0);
+                vacc = vacc.add(va.mul(vb));
+            }
+            acc = vacc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < n; i++)
+            acc += a[aOff + i] * b[bOff + i];
+        return acc;
+    }
+
+    /**
+     * measured on a 784-512-10 network: the gathers of the sparse path are only faster than the vector loops for very sparse inputs
+     */
+    @Override
+    public double maxSparseDensity() {
+        return 0.15;
+    }
+
+    @Override
+    public String toString() {
+        return "vector(" + SPECIES + "," + FSPECIES + ")";
+    }
+}
@@ -0,0 +1,131 @@
+package bruno.nn;
+
+import java.util.Random;
+
+/**
+ * Checks VectorKernels against ScalarKernels, first on random arrays (incl. odd lengths and offsets)
+ * then by training the same network with both.
+ *
+ * Requires --add-modules jdk.incubator.vector
+ */
+public class VectorKernelsCheck {
+
+    static void check(String what, double expected, double actual, double tolerance) {
+        if (Math.abs(expected - actual) > tolerance * Math.max(1, Math.abs(expected)))
+            throw new IllegalStateException(what + " expected:" + expected + " actual:" + actual);
+    }
+
+    static void check(String what, double[] expected, double[] actual, double tolerance) {
+        for (int i = 0; i < expected.length; i++)
+            check(what + "[" + i + "]", expected[i], actual[i], tolerance);
+    }
+
+    static void check(String what, float[] expected, float[] actual, double tolerance) {
+        for (int i = 0; i < expected.length; i++)
+            check(what + "[" + i + "]", expected[i], actual[i], tolerance);
+    }
+
+    public static void main(String... args) {
+        Kernels scalar = new ScalarKernels();
+        Kernels vector = new VectorKernels();
+        NeuralNet.log("checking " + vector + " against " + scalar);
+        Random random = new Random(0);
+        for (int n : new int[] { 0, 1, 3, 7, 8, 9, 31, 64, 513, 784 }) {
+            int off = random.nextInt(5);
+            double[] a = new double[n + off];
+            double[] b = new double[n + off];
+            DataHelper.fill(() -> random.nextDouble() - 0.5, a);
+            DataHelper.fill(() -> random.nextDouble() - 0.5, b);
+
+            check("dot n=" + n, scalar.dot(a, off, b, off, n), vector.dot(a, off, b, off, n), 1e-12);
+
+            double[] ys = b.clone();
+            double[] yv = b.clone();
+            scalar.axpy(0.3, a, off, ys, off, n);
+            vector.axpy(0.3, a, off, yv, off, n);
+            check("axpy n=" + n, ys, yv, 0);
+
+            double[] ws = b.clone();
+            double[] wv = b.clone();
+            scalar.descend(ws, a.clone(), a.length, 7, 0.1);
+            vector.descend(wv, a.clone(), a.length, 7, 0.1);
+            check("descend n=" + n, ws, wv, 0);
+
+            float[] af = new float[a.length];
+            float[] bf = new float[b.length];
+            for (int i = 0; i < a.length; i++) {
+                af[i] = (float) a[i];
+                bf[i] = (float) b[i];
+            }
+            check("float dot n=" + n, scalar.dot(af, off, bf, off, n), vector.dot(af, off, bf, off, n), 1e-5);
+
+            float[] yfs = bf.clone();
+            float[] yfv = bf.clone();
+            scalar.axpy(0.3f, af, off, yfs, off, n);
+            vector.axpy(0.3f, af, off, yfv, off, n);
+            check("float axpy n=" + n, yfs, yfv, 0);
+
+            float[] wfs = bf.clone();
+            float[] wfv = bf.clone();
+            scalar.descend(wfs, af.clone(), af.length, 7, 0.1f);
+            vector.descend(wfv, af.clone(), af.length, 7, 0.1f);
+            check("float descend n=" + n, wfs, wfv, 0);
+
+            byte[] ab = new byte[a.length];
+            byte[] bb = new byte[b.length];
+            for (int i = 0; i < a.length; i++) {
+                ab[i] = QuantizedModel.quantize(a[i], 0.5f / 127);
+                bb[i] = QuantizedModel.quantize(b[i], 0.5f / 127);
+            }
+            check("int8 dot n=" + n, scalar.dot(ab, off, bb, off, n), vector.dot(ab, off, bb, off, n), 0);
+        }
+
+        NeuralNet.Config config = new NeuralNet.Config();
+        config.layer_sizes = new int[] { 784, 64, 10 };
+        NeuralNet nnScalar = new NeuralNet(config);
+        config.vectorKernels = true;
+        NeuralNet nnVector = new NeuralNet(config);
+        if (!(nnVector.kernels instanceof VectorKernels))
+            throw new IllegalStateException("vector kernels were not selected");
+        for (int batch = 0; batch < 5; batch++) {
+            for (int s = 0; s < 20; s++) {
+                double[] input = new double[784];
+                DataHelper.fill(random::nextDouble, input);
+                double[] expected = DataHelper.toArgmax(10, random.nextInt(10));
+                nnScalar.computeFwdBwd(input, expected);
+                nnVector.computeFwdBwd(input, expected);
+                check("output", nnScalar.ls[2], nnVector.ls[2], 1e-9);
+            }
+            for (int l = 0; l < 2; l++) {
+                check("dws[" + l + "]", nnScalar.dws[l], nnVector.dws[l], 1e-9);
+                check("dbs[" + l + "]", nnScalar.dbs[l], nnVector.dbs[l], 1e-9);
+            }
+            nnScalar.applyDws();
+            nnVector.applyDws();
+            nnScalar.resetDws();
+            nnVector.resetDws();
+            for (int l = 0; l < 2; l++)
+                check("ws[" + l + "]", nnScalar.ws[l], nnVector.ws[l], 1e-9);
+        }
+
+        // single precision: vector vs scalar kernels
+        config.float32 = true;
+        FloatNeuralNet fnnVector = (FloatNeuralNet) NeuralNet.create(config);
+        config.vectorKernels = false;
+        FloatNeuralNet fnnScalar = (FloatNeuralNet) NeuralNet.create(config);
+        for (int s = 0; s < 20; s++) {
+            double[] input = new double[784];
+            DataHelper.fill(random::nextDouble, input);
+            double[] expected = DataHelper.toArgmax(10, random.nextInt(10));
+            fnnScalar.computeFwdBwd(input, expected);
+            fnnVector.computeFwdBwd(input, expected);
+            check("float output", fnnScalar.ls[2], fnnVector.ls[2], 1e-4);
+        }
+        fnnScalar.applyDws();
+        fnnVector.applyDws();
+        for (int l = 0; l < 2; l++)
+            check("float ws[" + l + "]", fnnScalar.ws[l], fnnVector.ws[l], 1e-4);
+
+        NeuralNet.log("vector kernels ok");
+    }
+}